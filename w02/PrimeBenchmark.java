@@ -0,0 +1,117 @@
+import java.util.*;
+import java.util.function.LongUnaryOperator;
+
+// Timing comparison of the PrimeNumber sieves, mainly the wheel sieve against the plain
+// marking loops it replaces.
+// Usage: java PrimeBenchmark [--variant=simple|packed|segmented|wheel|lucy|all]
+//        [--limits=N,N,...] [--warmup=N] [--iterations=N] [--verify[=LIMIT]]
+// Every variant counts the primes up to each limit warmup + iterations times; the median
+// of the measured runs is printed with the matching throughput in numbers sieved per
+// nanosecond. Variants are skipped for limits they cannot handle in memory. This is a quick
+// check without a build; bench/ holds the JMH comparison (forked JVMs, JMH warmup), whose
+// numbers are the ones to quote.
+// --verify replaces the timing with a cross-check of countPrimesLucy against pi(n) from a
+// PrimeTable sieved up to LIMIT (default 10^8): every n up to 20000, n = p * p - 1, p * p
+// and p * p + 1 for every prime p with p * p <= LIMIT (where Lucy's loops change their
+// bounds), every power of ten and 1000 random n. The first mismatch throws.
+public class PrimeBenchmark {
+    static class Variant {
+        final String name;
+        final long maxLimit;
+        final LongUnaryOperator count;
+
+        Variant(String name, long maxLimit, LongUnaryOperator count) {
+            this.name = name;
+            this.maxLimit = maxLimit;
+            this.count = count;
+        }
+    }
+
+    private static List<Variant> variants() {
+        List<Variant> list = new ArrayList<>();
+        list.add(new Variant("simple", 1L << 30, limit -> PrimeNumber.countPrimes((int) limit)));
+        list.add(new Variant("packed", 1L << 34, PrimeNumber::countPrimesPacked));
+        list.add(new Variant("segmented", Long.MAX_VALUE, PrimeNumber::countPrimesSegmented));
+        list.add(new Variant("wheel", Long.MAX_VALUE, PrimeNumber::countPrimesWheel));
+        list.add(new Variant("lucy", Long.MAX_VALUE, PrimeNumber::countPrimesLucy));
+        return list;
+    }
+
+    public static void main(String[] args) {
+        String selected = "all";
+        long[] limits = {10_000_000L, 100_000_000L, 1_000_000_000L};
+        int warmup = 2;
+        int iterations = 5;
+        long verifyLimit = 0;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq >= 0 ? arg.substring(0, eq) : arg;
+            String value = eq >= 0 ? arg.substring(eq + 1) : "";
+            switch (name) {
+                case "--variant": selected = value; break;
+                case "--limits": limits = Arrays.stream(value.split(",")).mapToLong(Long::parseLong).toArray(); break;
+                case "--warmup": warmup = Integer.parseInt(value); break;
+                case "--iterations": iterations = Integer.parseInt(value); break;
+                case "--verify": verifyLimit = value.isEmpty() ? 100_000_000L : Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (verifyLimit > 0) {
+            verify(verifyLimit);
+            return;
+        }
+        List<String> names = Arrays.asList(selected.split(","));
+
+        System.out.printf("# warmup=%d iterations=%d processors=%d%n",
+                warmup, iterations, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-10s %14s %14s %12s %14s%n", "variant", "limit", "primes", "ms", "numbers/ns");
+        for (long limit : limits) {
+            for (Variant variant : variants()) {
+                if (!selected.equals("all") && !names.contains(variant.name)) continue;
+                if (limit > variant.maxLimit) continue;
+                double[] millis = new double[iterations];
+                long primes = 0;
+                for (int i = -warmup; i < iterations; i++) {
+                    long start = System.nanoTime();
+                    primes = variant.count.applyAsLong(limit);
+                    long elapsed = System.nanoTime() - start;
+                    if (i >= 0) millis[i] = elapsed / 1e6;
+                }
+                Arrays.sort(millis);
+                double median = millis[iterations / 2];
+                System.out.printf("%-10s %14d %14d %12.1f %14.3f%n", variant.name, limit, primes,
+                        median, limit / (median * 1e6));
+            }
+        }
+    }
+
+    // The --verify cross-check described at the top.
+    private static void verify(long limit) {
+        PrimeNumber.PrimeTable table = new PrimeNumber.PrimeTable();
+        long start = System.nanoTime();
+        table.pi(limit);
+        System.out.printf("# verify: sieved to %d in %.1f ms%n", limit, (System.nanoTime() - start) / 1e6);
+        start = System.nanoTime();
+        SortedSet<Long> points = new TreeSet<>();
+        for (long n = 0; n <= Math.min(limit, 20_000); n++) points.add(n);
+        for (long p = 2; p * p <= limit; p++) {
+            if (!table.isPrime(p)) continue;
+            points.add(p * p - 1);
+            points.add(p * p);
+            if (p * p + 1 <= limit) points.add(p * p + 1);
+        }
+        for (long n = 10; n <= limit; n *= 10) points.add(n);
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) points.add(2 + (long) (random.nextDouble() * (limit - 1)));
+        points.add(limit);
+        for (long n : points) {
+            long expected = table.pi(n);
+            long actual = PrimeNumber.countPrimesLucy(n);
+            if (actual != expected) {
+                throw new AssertionError("countPrimesLucy(" + n + ") = " + actual + ", sieve pi = " + expected);
+            }
+        }
+        System.out.printf("countPrimesLucy matches the sieve at %d points up to %d (%.1f ms)%n", points.size(), limit,
+                (System.nanoTime() - start) / 1e6);
+    }
+}
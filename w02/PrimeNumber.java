@@ -1,22 +1,141 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+// Usage: java PrimeNumber [--simple | --packed | --segmented | --wheel | --lucy | --table] < limit
+// Prints the number of primes <= limit. Limits up to LUCY_THRESHOLD use the bit-packed
+// sieve, larger ones the Lucy prime-counting method, which needs about 16 * sqrt(limit)
+// bytes and O(limit^(3/4)) time. The flags force one of them: --simple is the original
+// boolean[] sieve, --segmented the parallel segmented sieve (practical up to about 10^12),
+// --wheel its bit-packed mod-30 wheel variant, --table the shared PrimeTable.
+// java PrimeNumber --batch < limits reads any number of whitespace-separated limits and
+// prints one count per line, in input order (see runBatch).
 public class PrimeNumber {
-    public static void main(String[] args) {
+    // Default limits above this are counted with countPrimesLucy rather than the packed
+    // sieve, whose whole-range bit set gets too big to be worth it.
+    private static final int LUCY_THRESHOLD = 1 << 24;
+    // The packed sieve's long[] has to fit in an array: one bit per odd number.
+    private static final long PACKED_SIEVE_MAX_LIMIT = 128L * (Integer.MAX_VALUE - 8) - 1;
+    // Numbers per segment; the segment's boolean[] fits in a typical L2 cache.
+    private static final int SEGMENT_SIZE = 1 << 18;
+    // A fork-join task sieves at most this many consecutive segments itself.
+    private static final int SEGMENTS_PER_TASK = 8;
+    // Batch queries up to this are answered from one shared sieve (about 128 MB at the limit:
+    // 64 MB of odd-only bits and 64 MB of per-word prefix counts); larger ones are counted
+    // one by one with countPrimesLucy.
+    private static final long BATCH_SIEVE_LIMIT = 1L << 30;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(System.in);
+            return;
+        }
+
         Scanner scanner = new Scanner(System.in);
 
         // Read the upper limit
-        int limit = scanner.nextInt();
+        long limit = scanner.nextLong();
         scanner.close();
 
+        String mode = args.length > 0 ? args[0] : limit > LUCY_THRESHOLD ? "--lucy" : "--packed";
+        if (mode.equals("--simple") && limit > Integer.MAX_VALUE - 1) {
+            throw new IllegalArgumentException("--simple supports limits up to " + (Integer.MAX_VALUE - 1));
+        }
+        if ((mode.equals("--packed") || mode.equals("--table")) && limit > PACKED_SIEVE_MAX_LIMIT) {
+            throw new IllegalArgumentException(mode + " supports limits up to " + PACKED_SIEVE_MAX_LIMIT);
+        }
+
         // Call the sieve method to count primes
-        int primeCount = countPrimes(limit);
+        long primeCount;
+        switch (mode) {
+            case "--simple": primeCount = countPrimes((int) limit); break;
+            case "--packed": primeCount = countPrimesPacked(limit); break;
+            case "--segmented": primeCount = countPrimesSegmented(limit); break;
+            case "--wheel": primeCount = countPrimesWheel(limit); break;
+            case "--lucy": primeCount = countPrimesLucy(limit); break;
+            case "--table": primeCount = PrimeTable.shared().pi(limit); break;
+            default: throw new IllegalArgumentException("Unknown option: " + mode);
+        }
 
         // Print the result
         System.out.println(primeCount);
     }
 
+    // Answers every limit in the input: the limits are read first, the PrimeTable is grown once
+    // to the largest one that is at most BATCH_SIEVE_LIMIT, and each count is then a lookup
+    // in its prefix counts. Results go through a single buffered stream.
+    private static void runBatch(InputStream in) throws IOException {
+        long[] limits = readLongs(in);
+        long maxSieved = 0;
+        for (long limit : limits) {
+            if (limit <= BATCH_SIEVE_LIMIT) maxSieved = Math.max(maxSieved, limit);
+        }
+        PrimeTable table = PrimeTable.shared();
+        table.pi(maxSieved); // sieve once, up front
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        for (long limit : limits) {
+            out.println(limit <= BATCH_SIEVE_LIMIT ? table.pi(limit) : countPrimesLucy(limit));
+        }
+        out.flush();
+    }
+
+    // Reads whitespace-separated decimal longs from a buffered byte stream, without the
+    // regular-expression matching Scanner does per token.
+    private static long[] readLongs(InputStream in) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        long[] values = new long[1024];
+        int count = 0;
+        long value = 0;
+        boolean signed = false;
+        boolean negative = false;
+        int tokenLength = 0;
+        boolean valid = true;
+        int length;
+        do {
+            length = in.read(buffer);
+            for (int i = 0; i < Math.max(length, 1); i++) {
+                int c = length > 0 ? buffer[i] : ' '; // end of input closes the last token
+                if (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f') {
+                    if (tokenLength == 0) continue;
+                    if (!valid || (signed && tokenLength == 1)) {
+                        throw new NumberFormatException("Not a limit in the input");
+                    }
+                    if (count == values.length) values = Arrays.copyOf(values, count * 2);
+                    values[count++] = negative ? -value : value;
+                    value = 0;
+                    signed = false;
+                    negative = false;
+                    tokenLength = 0;
+                    valid = true;
+                } else {
+                    if (c >= '0' && c <= '9') {
+                        if (value > (Long.MAX_VALUE - (c - '0')) / 10) valid = false;
+                        value = value * 10 + (c - '0');
+                    } else if ((c == '-' || c == '+') && tokenLength == 0) {
+                        signed = true;
+                        negative = c == '-';
+                    } else {
+                        valid = false;
+                    }
+                    tokenLength++;
+                }
+            }
+        } while (length >= 0);
+        return Arrays.copyOf(values, count);
+    }
+
     // Function to count prime numbers using the Sieve of Eratosthenes
-    private static int countPrimes(int limit) {
+    static int countPrimes(int limit) {
         if (limit < 2) return 0; // No primes less than 2
 
         boolean[] isPrime = new boolean[limit + 1];
@@ -44,4 +163,428 @@ public class PrimeNumber {
 
         return count;
     }
+
+    // Same sieve as countPrimes, but only odd numbers are stored, one bit each in a long[]:
+    // bit i of the array stands for 2 * i + 1 and is set once that number is known to be
+    // composite. Uses 1/16 of the memory of boolean[limit + 1].
+    static long countPrimesPacked(long limit) {
+        if (limit < 2) return 0;
+        long bits = (limit + 1) / 2;
+        long[] composite = new long[(int) ((bits + 63) >>> 6)];
+        composite[0] = 1; // 1 is not a prime
+
+        // Mark odd multiples of odd primes, stepping by 2 * p to skip the even ones
+        for (long p = 3; p * p <= limit; p += 2) {
+            if ((composite[(int) (p >>> 7)] & (1L << (p >>> 1))) == 0) {
+                for (long j = p * p; j <= limit; j += 2 * p) {
+                    composite[(int) (j >>> 7)] |= 1L << (j >>> 1);
+                }
+            }
+        }
+
+        // Count the odd primes a word at a time; bits past the limit are never set
+        long compositeCount = 0;
+        for (long word : composite) {
+            compositeCount += Long.bitCount(word);
+        }
+        return 1 + bits - compositeCount; // 2 is the only even prime
+    }
+
+    // Counts primes <= limit with a segmented sieve: the base primes up to sqrt(limit) are found
+    // first, then [0, limit] is cut into SEGMENT_SIZE blocks that are sieved in parallel.
+    static long countPrimesSegmented(long limit) {
+        if (limit < 2) return 0;
+        int[] basePrimes = primesUpTo((int) sqrt(limit));
+        long segments = limit / SEGMENT_SIZE + 1;
+        return ForkJoinPool.commonPool().invoke(new SegmentTask(limit, basePrimes, 0, segments));
+    }
+
+    // Counts primes <= limit without sieving up to it (Lucy_Hedgehog's method). S(v) is the
+    // number of integers in [2, v] not crossed off by the primes handled so far; it only has to
+    // be known for the values limit / i, which are either <= sqrt(limit) (kept in small[v]) or
+    // limit / i for some i <= sqrt(limit) (kept in large[i]). Each prime p <= sqrt(limit)
+    // removes from S(v), for v >= p * p, the numbers whose smallest prime factor is p:
+    // S(v) -= S(v / p) - S(p - 1). At the end S(limit) = pi(limit).
+    static long countPrimesLucy(long limit) {
+        if (limit < 2) return 0;
+        int r = (int) sqrt(limit);
+        long[] small = new long[r + 1];
+        long[] large = new long[r + 1];
+        for (int v = 1; v <= r; v++) {
+            small[v] = v - 1;
+            large[v] = limit / v - 1;
+        }
+        for (int p = 2; p <= r; p++) {
+            if (small[p] == small[p - 1]) continue; // p was crossed off, so it is not a prime
+            long primesBelow = small[p - 1];
+            long square = (long) p * p;
+            long end = Math.min(r, limit / square);
+            for (int i = 1; i <= end; i++) {
+                long d = (long) i * p;
+                large[i] -= (d <= r ? large[(int) d] : small[(int) (limit / d)]) - primesBelow;
+            }
+            for (int v = r; v >= square; v--) {
+                small[v] -= small[v / p] - primesBelow;
+            }
+        }
+        return large[1];
+    }
+
+    // Largest r with r * r <= n.
+    private static long sqrt(long n) {
+        long r = (long) Math.sqrt((double) n);
+        while (r * r > n) r--;
+        while ((r + 1) * (r + 1) <= n) r++;
+        return r;
+    }
+
+    // All primes <= limit, by the plain sieve.
+    private static int[] primesUpTo(int limit) {
+        if (limit < 2) return new int[0];
+        boolean[] composite = new boolean[limit + 1];
+        int count = 0;
+        for (int i = 2; i <= limit; i++) {
+            if (composite[i]) continue;
+            count++;
+            for (long j = (long) i * i; j <= limit; j += i) {
+                composite[(int) j] = true;
+            }
+        }
+        int[] primes = new int[count];
+        int n = 0;
+        for (int i = 2; i <= limit; i++) {
+            if (!composite[i]) primes[n++] = i;
+        }
+        return primes;
+    }
+
+    // Counts the primes in segments [from, to), splitting the range in half until it is small
+    // enough to sieve directly.
+    static class SegmentTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final long limit;
+        private final int[] basePrimes;
+        private final long from;
+        private final long to;
+
+        SegmentTask(long limit, int[] basePrimes, long from, long to) {
+            this.limit = limit;
+            this.basePrimes = basePrimes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from > SEGMENTS_PER_TASK) {
+                long middle = (from + to) >>> 1;
+                SegmentTask left = new SegmentTask(limit, basePrimes, from, middle);
+                left.fork();
+                long right = new SegmentTask(limit, basePrimes, middle, to).compute();
+                return right + left.join();
+            }
+            return sieveSegments();
+        }
+
+        private long sieveSegments() {
+            boolean[] composite = new boolean[SEGMENT_SIZE];
+            long low = from * SEGMENT_SIZE;
+            // Next multiple of each base prime to cross off, starting at its square.
+            long[] next = new long[basePrimes.length];
+            for (int k = 0; k < basePrimes.length; k++) {
+                long p = basePrimes[k];
+                next[k] = Math.max(p * p, (low + p - 1) / p * p);
+            }
+            long count = 0;
+            for (long segment = from; segment < to; segment++, low += SEGMENT_SIZE) {
+                long high = Math.min(low + SEGMENT_SIZE - 1, limit);
+                int length = (int) (high - low + 1);
+                Arrays.fill(composite, 0, length, false);
+                for (int k = 0; k < basePrimes.length; k++) {
+                    long j = next[k];
+                    if (j > high) continue;
+                    int p = basePrimes[k];
+                    int offset = (int) (j - low);
+                    for (; offset < length; offset += p) {
+                        composite[offset] = true;
+                    }
+                    next[k] = low + offset;
+                }
+                for (int i = 0; i < length; i++) {
+                    if (!composite[i]) count++;
+                }
+                // 0 and 1 are not primes.
+                if (low == 0) count -= Math.min(2, length);
+            }
+            return count;
+        }
+    }
+
+    // Segmented sieve over odd numbers with a mod-30 wheel. Segments are bit-packed like
+    // countPrimesPacked and start as a copy of PRESIEVE_PATTERN, which already has the
+    // multiples of 3, 5, 7, 11 and 13 crossed off. The remaining base primes only visit the
+    // multiples p * m with m coprime to 30, 8 out of every 30 numbers instead of 15.
+    static long countPrimesWheel(long limit) {
+        if (limit < 2) return 0;
+        int[] basePrimes = primesUpTo((int) sqrt(limit));
+        int first = 0;
+        while (first < basePrimes.length && basePrimes[first] <= WheelTask.LARGEST_PRESIEVED) first++;
+        int[] sievingPrimes = Arrays.copyOfRange(basePrimes, first, basePrimes.length);
+        long segments = limit / WheelTask.SEGMENT_NUMBERS + 1;
+        return 1 + ForkJoinPool.commonPool().invoke(new WheelTask(limit, sievingPrimes, 0, segments)); // 1 for 2
+    }
+
+    // Counts the odd primes in wheel segments [from, to), split like SegmentTask.
+    static class WheelTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        // Words per segment: 32 KB, which covers 2^18 odd numbers.
+        private static final int SEGMENT_WORDS = 1 << 12;
+        static final long SEGMENT_NUMBERS = 128L * SEGMENT_WORDS;
+        static final int LARGEST_PRESIEVED = 13;
+        // Odd numbers repeat their divisibility by 3, 5, 7, 11 and 13 every 15015 bits,
+        // so 15015 words hold 64 whole periods and line up with any word boundary.
+        private static final int PATTERN_WORDS = 3 * 5 * 7 * 11 * 13;
+        private static final long[] PRESIEVE_PATTERN = presievePattern();
+        // Residues mod 30 of the numbers coprime to 30, and half the gap to the next one.
+        private static final int[] WHEEL = {1, 7, 11, 13, 17, 19, 23, 29};
+        private static final int[] HALF_GAP = {3, 2, 1, 2, 1, 2, 3, 1};
+        // Position in WHEEL of each residue coprime to 30, -1 for the others.
+        private static final int[] WHEEL_INDEX = new int[30];
+
+        static {
+            Arrays.fill(WHEEL_INDEX, -1);
+            for (int i = 0; i < WHEEL.length; i++) {
+                WHEEL_INDEX[WHEEL[i]] = i;
+            }
+        }
+
+        private final long limit;
+        private final int[] sievingPrimes;
+        private final long from;
+        private final long to;
+
+        WheelTask(long limit, int[] sievingPrimes, long from, long to) {
+            this.limit = limit;
+            this.sievingPrimes = sievingPrimes;
+            this.from = from;
+            this.to = to;
+        }
+
+        private static long[] presievePattern() {
+            long[] pattern = new long[PATTERN_WORDS];
+            for (int p = 3; p <= LARGEST_PRESIEVED; p += 2) {
+                if (p == 9) continue;
+                // Bit b stands for 2 * b + 1, a multiple of p for b = p / 2 + k * p.
+                for (long bit = p / 2; bit < 64L * PATTERN_WORDS; bit += p) {
+                    pattern[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+            return pattern;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from > SEGMENTS_PER_TASK) {
+                long middle = (from + to) >>> 1;
+                WheelTask left = new WheelTask(limit, sievingPrimes, from, middle);
+                left.fork();
+                long right = new WheelTask(limit, sievingPrimes, middle, to).compute();
+                return right + left.join();
+            }
+            return sieveSegments();
+        }
+
+        private long sieveSegments() {
+            long[] composite = new long[SEGMENT_WORDS];
+            long firstBit = from * SEGMENT_WORDS * 64;
+            // For each prime, the next multiplier m (coprime to 30, at least p) to cross off
+            // and its position on the wheel.
+            long[] multiple = new long[sievingPrimes.length];
+            int[] wheel = new int[sievingPrimes.length];
+            for (int k = 0; k < sievingPrimes.length; k++) {
+                long p = sievingPrimes[k];
+                long m = Math.max(p, (2 * firstBit + 1 + p - 1) / p);
+                while (WHEEL_INDEX[(int) (m % 30)] < 0) m++;
+                multiple[k] = m;
+                wheel[k] = WHEEL_INDEX[(int) (m % 30)];
+            }
+            long lastBit = (limit - 1) >>> 1; // bit of the largest odd number <= limit
+            long count = 0;
+            for (long segment = from; segment < to; segment++, firstBit += SEGMENT_WORDS * 64) {
+                int bits = (int) Math.min(SEGMENT_WORDS * 64L, lastBit - firstBit + 1);
+                int words = (bits + 63) >>> 6;
+                // Start from the presieved pattern at this segment's position.
+                int offset = (int) ((firstBit >>> 6) % PATTERN_WORDS);
+                for (int filled = 0; filled < words; ) {
+                    int chunk = Math.min(words - filled, PATTERN_WORDS - offset);
+                    System.arraycopy(PRESIEVE_PATTERN, offset, composite, filled, chunk);
+                    filled += chunk;
+                    offset = 0;
+                }
+                if (firstBit == 0) {
+                    // 1 is not a prime; 3, 5, 7, 11 and 13 are, although the pattern crossed them off.
+                    composite[0] = (composite[0] | 1L) & ~0b1101110L;
+                }
+                for (int k = 0; k < sievingPrimes.length; k++) {
+                    int p = sievingPrimes[k];
+                    long m = multiple[k];
+                    long bit = ((p * m) >>> 1) - firstBit;
+                    if (bit >= bits) continue;
+                    int w = wheel[k];
+                    int local = (int) bit;
+                    while (local < bits) {
+                        composite[local >>> 6] |= 1L << local;
+                        m += 2 * HALF_GAP[w];
+                        local += p * HALF_GAP[w];
+                        w = (w + 1) & 7;
+                    }
+                    multiple[k] = m;
+                    wheel[k] = w;
+                }
+                // Bits past the limit count as composite.
+                if ((bits & 63) != 0) composite[words - 1] |= -1L << bits;
+                for (int i = 0; i < words; i++) {
+                    count += Long.bitCount(~composite[i]);
+                }
+            }
+            return count;
+        }
+    }
+
+    // Sieve that is kept between calls: it remembers the largest range sieved so far, extends
+    // it when a bigger limit is asked for, and answers pi(n) inside it from a prefix count per
+    // word. Storage is the odd-only bit layout of countPrimesPacked. Safe to share between
+    // threads: queries read an immutable Sieve, growth replaces it under the table's lock.
+    static class PrimeTable {
+        private static final long INITIAL_LIMIT = 1 << 16;
+        private static final PrimeTable SHARED = new PrimeTable();
+
+        // Sieved range [0, limit]: composite bits for the odd numbers, and for every word
+        // the number of primes below it, counting 2.
+        private static class Sieve {
+            final long limit;
+            final long[] composite;
+            final long[] primesBefore;
+
+            Sieve(long limit, long[] composite, long[] primesBefore) {
+                this.limit = limit;
+                this.composite = composite;
+                this.primesBefore = primesBefore;
+            }
+        }
+
+        private volatile Sieve sieve = new Sieve(1, new long[] {1}, new long[] {1});
+
+        // The process-wide table used by main.
+        public static PrimeTable shared() {
+            return SHARED;
+        }
+
+        // Largest n the table can answer without sieving more.
+        public long limit() {
+            return sieve.limit;
+        }
+
+        // Number of primes <= n.
+        public long pi(long n) {
+            if (n < 2) return 0;
+            Sieve current = sieveCovering(n);
+            long bit = (n - 1) >>> 1; // bit of the largest odd number <= n
+            int word = (int) (bit >>> 6);
+            long mask = -1L >>> (63 - (int) (bit & 63));
+            return current.primesBefore[word] + Long.bitCount(~current.composite[word] & mask);
+        }
+
+        public boolean isPrime(long n) {
+            if (n < 3) return n == 2;
+            if ((n & 1) == 0) return false;
+            Sieve current = sieveCovering(n);
+            return (current.composite[(int) (n >>> 7)] & (1L << (n >>> 1))) == 0;
+        }
+
+        // The primes in [from, to] in increasing order. The table is grown to cover the range
+        // first; the iterator then reads a fixed copy of it and never blocks.
+        public PrimitiveIterator.OfLong primes(long from, long to) {
+            Sieve current = sieveCovering(Math.max(to, 2));
+            return new PrimitiveIterator.OfLong() {
+                // Next candidate: 2 on its own, then odd numbers.
+                private long next = from <= 2 ? 2 : from | 1;
+                private boolean ready;
+
+                @Override
+                public boolean hasNext() {
+                    if (ready) return true;
+                    if (next == 2) {
+                        ready = to >= 2;
+                        if (!ready) next = Long.MAX_VALUE;
+                        return ready;
+                    }
+                    // Skip whole words of composites at a time.
+                    for (long bit = next >>> 1; next <= to; ) {
+                        int word = (int) (bit >>> 6);
+                        long candidates = ~current.composite[word] & (-1L << (bit & 63));
+                        if (candidates != 0) {
+                            bit = ((long) word << 6) + Long.numberOfTrailingZeros(candidates);
+                            next = 2 * bit + 1;
+                            ready = next <= to;
+                            return ready;
+                        }
+                        bit = (long) (word + 1) << 6;
+                        next = 2 * bit + 1;
+                    }
+                    return false;
+                }
+
+                @Override
+                public long nextLong() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    long prime = next;
+                    next = prime == 2 ? 3 : prime + 2;
+                    ready = false;
+                    return prime;
+                }
+            };
+        }
+
+        private Sieve sieveCovering(long n) {
+            Sieve current = sieve;
+            return n <= current.limit ? current : grow(n);
+        }
+
+        // Extends the sieve to at least n, at least doubling it so that repeated small steps
+        // cost amortised linear time. Only the new numbers are sieved.
+        private synchronized Sieve grow(long n) {
+            Sieve old = sieve;
+            if (n <= old.limit) return old;
+            if (n > PACKED_SIEVE_MAX_LIMIT) {
+                throw new IllegalArgumentException("PrimeTable supports limits up to " + PACKED_SIEVE_MAX_LIMIT);
+            }
+            long limit = Math.min(PACKED_SIEVE_MAX_LIMIT, Math.max(n, Math.max(INITIAL_LIMIT, 2 * old.limit)));
+            int words = (int) (((limit + 1) / 2 + 63) >>> 6);
+            // Bits past the old limit in its last word are still clear, they are sieved now
+            long[] composite = Arrays.copyOf(old.composite, words);
+            long firstNew = old.limit + 1;
+
+            // Primes are found in increasing order, so each p is final before it is used
+            for (long p = 3; p * p <= limit; p += 2) {
+                if ((composite[(int) (p >>> 7)] & (1L << (p >>> 1))) != 0) continue;
+                // First odd multiple of p in the new range, but not below p * p
+                long start = Math.max(p * p, (firstNew + p - 1) / p * p);
+                if ((start & 1) == 0) start += p;
+                for (long j = start; j <= limit; j += 2 * p) {
+                    composite[(int) (j >>> 7)] |= 1L << (j >>> 1);
+                }
+            }
+            long[] primesBefore = Arrays.copyOf(old.primesBefore, words);
+            int firstWord = old.composite.length - 1;
+            for (int i = firstWord + 1; i < words; i++) {
+                primesBefore[i] = primesBefore[i - 1] + Long.bitCount(~composite[i - 1]);
+            }
+            Sieve grown = new Sieve(limit, composite, primesBefore);
+            sieve = grown;
+            return grown;
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package primes;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// JMH version of PrimeBenchmark: the original boolean[] marking loop (countPrimes) against
+// the mod-30 wheel sieve that replaces it, with the packed and segmented sieves alongside.
+// Every invocation counts the primes up to limit once; sieving 10^9 takes seconds, so each
+// measurement is a single shot, as in PrimeBenchmark. The forks get a 3 GB heap because
+// countPrimes needs a byte per number.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SieveBenchmark {
+    @Param({"10000000", "100000000", "1000000000"})
+    public int limit;
+
+    @Benchmark
+    public int countPrimes() {
+        return PrimeNumber.countPrimes(limit);
+    }
+
+    @Benchmark
+    public long countPrimesWheel() {
+        return PrimeNumber.countPrimesWheel(limit);
+    }
+
+    @Benchmark
+    public long countPrimesPacked() {
+        return PrimeNumber.countPrimesPacked(limit);
+    }
+
+    @Benchmark
+    public long countPrimesSegmented() {
+        return PrimeNumber.countPrimesSegmented(limit);
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Append-only record of the state-changing calls made on a network, with periodic
+// checkpoints, so that the state after any command can be rebuilt without rerunning
+// the whole log. A journal directory holds:
+//   journal.bin             magic, version, then one record per call: the command number,
+//                           the Command ordinal and the call's arguments
+//   checkpoints.idx         (command number, journal offset) pairs, one per checkpoint
+//   checkpoint-<N>.snap     a NetworkModel snapshot of the state after command N
+// Command numbers count the commands read from the input, starting at 1.
+class CommandJournal implements Closeable {
+    private static final int JOURNAL_MAGIC = 0x4E534A4C; // "NSJL"
+    private static final int JOURNAL_VERSION = 1;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 100000;
+
+    private final Path directory;
+    private final long checkpointInterval;
+    private final SnapshotWriter journal;
+    private final SnapshotWriter index;
+    private long commandNumber;
+    private long lastCheckpoint;
+
+    private CommandJournal(Path directory, long checkpointInterval) throws IOException {
+        this.directory = directory;
+        this.checkpointInterval = checkpointInterval;
+        Files.createDirectories(directory);
+        this.journal = SnapshotWriter.create(directory.resolve("journal.bin"));
+        this.index = SnapshotWriter.create(directory.resolve("checkpoints.idx"));
+        journal.putInt(JOURNAL_MAGIC);
+        journal.putInt(JOURNAL_VERSION);
+    }
+
+    // Starts a new journal in the directory, replacing any journal already there.
+    public static CommandJournal create(Path directory, long checkpointInterval) throws IOException {
+        return new CommandJournal(directory, checkpointInterval);
+    }
+
+    public void beginCommand(long number) {
+        commandNumber = number;
+    }
+
+    // Takes a checkpoint after every checkpointInterval commands.
+    public void endCommand(NetworkSimulation.NetworkModel network) throws IOException {
+        if (commandNumber % checkpointInterval == 0) checkpoint(network);
+    }
+
+    // Snapshots the state after the current command, unless that was already done.
+    public void checkpoint(NetworkSimulation.NetworkModel network) throws IOException {
+        if (commandNumber == lastCheckpoint) return;
+        journal.flush();
+        network.snapshot(checkpointPath(directory, commandNumber));
+        index.putLong(commandNumber);
+        index.putLong(journal.position());
+        index.flush();
+        lastCheckpoint = commandNumber;
+    }
+
+    SnapshotWriter beginRecord(NetworkSimulation.Command command) {
+        try {
+            journal.putLong(commandNumber);
+            journal.putByte(command.ordinal());
+            return journal;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Rebuilds the state after the given command into an empty network: restores the
+    // latest checkpoint at or before it, then applies only the journal records after that.
+    public static NetworkSimulation.NetworkModel replay(Path directory, long target,
+                                                        NetworkSimulation.NetworkModel empty) throws IOException {
+        long start = 0;
+        long offset = -1;
+        Path indexPath = directory.resolve("checkpoints.idx");
+        if (Files.size(indexPath) >= 16) {
+            try (SnapshotReader in = SnapshotReader.open(indexPath)) {
+                while (!in.isAtEnd()) {
+                    long number = in.getLong();
+                    long position = in.getLong();
+                    if (number > target) break;
+                    start = number;
+                    offset = position;
+                }
+            }
+        }
+        if (offset >= 0) empty.restore(checkpointPath(directory, start));
+        try (SnapshotReader in = SnapshotReader.open(directory.resolve("journal.bin"))) {
+            if (in.getInt() != JOURNAL_MAGIC || in.getInt() != JOURNAL_VERSION) {
+                throw new IOException("not a command journal: " + directory);
+            }
+            if (offset >= 0) in.seek(offset);
+            while (!in.isAtEnd()) {
+                if (in.getLong() > target) break;
+                apply(NetworkSimulation.Command.ALL[in.getByte()], in, empty);
+            }
+        }
+        return empty;
+    }
+
+    private static void apply(NetworkSimulation.Command command, SnapshotReader in,
+                              NetworkSimulation.NetworkModel network) throws IOException {
+        switch (command) {
+            case ADD_OPERATOR:
+                network.addOperator(in.getString());
+                break;
+            case ADD_TOWER:
+                network.addTower(in.getString(), in.getDouble(), in.getDouble(), in.getDouble());
+                break;
+            case REGISTER_OPERATOR_TOWER:
+                network.registerOperatorTower(in.getString(), in.getString());
+                break;
+            case REMOVE_TOWER:
+                network.removeTower(in.getString());
+                break;
+            case ADD_CLIENT:
+                network.addClient(in.getString(), in.getString(), in.getDouble(), in.getDouble());
+                break;
+            case REMOVE_CLIENT:
+                network.removeClient(in.getString());
+                break;
+            case MOVE_CLIENT:
+                network.moveClient(in.getString(), in.getDouble(), in.getDouble());
+                break;
+            case MOVE_BATCH:
+                int count = in.getInt();
+                List<NetworkSimulation.ClientMove> moves = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    moves.add(new NetworkSimulation.ClientMove(in.getString(), in.getDouble(), in.getDouble()));
+                }
+                network.moveClients(moves);
+                break;
+            case CHANGE_OPERATOR:
+                network.changeOperator(in.getString(), in.getString());
+                break;
+            case SET_TOWER_CAPACITY:
+                network.setTowerCapacity(in.getString(), in.getInt());
+                break;
+            case REBALANCE:
+                network.rebalance();
+                break;
+            default:
+                throw new IOException("unexpected journal record " + command);
+        }
+    }
+
+    private static Path checkpointPath(Path directory, long number) {
+        return directory.resolve("checkpoint-" + number + ".snap");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            journal.close();
+        } finally {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.IntStream;
+
+// Storage engine without per-client objects. A client is a slot in parallel primitive
+// arrays (position, operator index, tower index), each tower keeps an int list of its
+// client slots, and phone numbers are interned in a PhoneTable. Towers and operators are
+// the same objects as in Network and are numbered in index tables.
+class CompactNetwork extends NetworkSimulation.TowerNetwork {
+    private static final int NONE = -1;
+
+    private final NetworkSimulation.PhoneTable phones = new NetworkSimulation.PhoneTable();
+    // Phone id -> client slot, or NONE once the client is removed.
+    private int[] slotByPhone = new int[16];
+    private int[] clientPhone = new int[16];
+    private double[] clientX = new double[16];
+    private double[] clientY = new double[16];
+    // Operator table index; NONE marks a free slot.
+    private int[] clientOperator = new int[16];
+    private int[] clientTower = new int[16];
+    // Position of the slot in its tower's member list.
+    private int[] clientTowerPosition = new int[16];
+    private int slotCount;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+
+    private final List<NetworkSimulation.Operator> operatorTable = new ArrayList<>();
+    private final List<NetworkSimulation.CellTower> towerTable = new ArrayList<>();
+    // Client slots connected to each tower; the length in use is the tower's client count.
+    private int[][] towerMembers = new int[16][];
+
+    public CompactNetwork() {
+        this(Metrics.NONE);
+    }
+
+    public CompactNetwork(Metrics metrics) {
+        super(metrics);
+    }
+
+    @Override
+    protected void indexOperator(NetworkSimulation.Operator operator) {
+        operator.setIndex(operatorTable.size());
+        operatorTable.add(operator);
+    }
+
+    @Override
+    protected void indexTower(NetworkSimulation.CellTower tower) {
+        int index = towerTable.size();
+        tower.setIndex(index);
+        towerTable.add(tower);
+        if (index == towerMembers.length) towerMembers = Arrays.copyOf(towerMembers, index * 2);
+        towerMembers[index] = new int[4];
+    }
+
+    @Override
+    protected void collectSnapshotEntities(List<NetworkSimulation.CellTower> towerList, List<NetworkSimulation.Operator> operatorList) {
+        towerList.addAll(towerTable);
+        operatorList.addAll(operatorTable);
+    }
+
+    @Override
+    protected void writeClients(SnapshotWriter out, Map<NetworkSimulation.CellTower, Integer> towerPositions,
+                                Map<NetworkSimulation.Operator, Integer> operatorPositions) throws IOException {
+        int live = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (clientOperator[slot] != NONE) live++;
+        }
+        out.putInt(live);
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (clientOperator[slot] == NONE) continue;
+            int phone = clientPhone[slot];
+            out.putString(phones.get(phone));
+            out.putInt(clientOperator[slot]);
+            out.putDouble(clientX[slot]);
+            out.putDouble(clientY[slot]);
+            out.putInt(clientTower[slot]);
+            out.putByte(slotByPhone[phone] == slot ? 1 : 0);
+        }
+    }
+
+    @Override
+    protected void restoreClient(String phoneNumber, NetworkSimulation.Operator operator, double x, double y,
+                                 NetworkSimulation.CellTower tower, boolean current) {
+        setTower(newSlot(phoneNumber, operator, x, y, current), tower);
+    }
+
+    @Override
+    protected void collectConnectedClients(NetworkSimulation.CellTower tower, List<RebalanceClient> result) {
+        int[] members = towerMembers[tower.getIndex()];
+        for (int i = 0; i < tower.getClientCount(); i++) {
+            int slot = members[i];
+            result.add(new RebalanceClient(slot, phones.get(clientPhone[slot]), operatorTable.get(clientOperator[slot]),
+                    clientX[slot], clientY[slot]));
+        }
+    }
+
+    @Override
+    protected void reconnect(RebalanceClient client, NetworkSimulation.CellTower tower) {
+        setTower((Integer) client.handle, tower);
+    }
+
+    @Override
+    public void addClient(String phoneNumber, String operatorName, double x, double y) {
+        NetworkSimulation.Operator operator = getOperator(operatorName);
+        if (operator == null) return;
+        int slot = newSlot(phoneNumber, operator, x, y, true);
+        setTower(slot, findBestTower(operator, x, y));
+    }
+
+    // Fills a slot for a subscriber without a tower. A client added again under the same
+    // number leaves the old slot connected, as in Network, so only current slots are
+    // entered in slotByPhone.
+    private int newSlot(String phoneNumber, NetworkSimulation.Operator operator, double x, double y, boolean current) {
+        int knownPhones = phones.size();
+        int phone = phones.intern(phoneNumber);
+        if (phone == slotByPhone.length) slotByPhone = Arrays.copyOf(slotByPhone, phone * 2);
+        if (phone == knownPhones) slotByPhone[phone] = NONE;
+        int slot = allocateSlot();
+        if (current) slotByPhone[phone] = slot;
+        clientPhone[slot] = phone;
+        clientX[slot] = x;
+        clientY[slot] = y;
+        clientOperator[slot] = operator.getIndex();
+        clientTower[slot] = NONE;
+        operator.adjustCounts(1, 1);
+        return slot;
+    }
+
+    @Override
+    public void removeClient(String phoneNumber) {
+        int phone = phones.find(phoneNumber);
+        if (phone < 0 || slotByPhone[phone] == NONE) return;
+        int slot = slotByPhone[phone];
+        slotByPhone[phone] = NONE;
+        boolean noSignal = clientTower[slot] == NONE;
+        operatorTable.get(clientOperator[slot]).adjustCounts(-1, noSignal ? -1 : 0);
+        if (!noSignal) removeMember(slot);
+        clientOperator[slot] = NONE;
+        if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+    }
+
+    @Override
+    public void moveClient(String phoneNumber, double x, double y) {
+        int slot = slotOf(phoneNumber);
+        if (slot == NONE) return;
+        clientX[slot] = x;
+        clientY[slot] = y;
+        setTower(slot, findBestTower(operatorTable.get(clientOperator[slot]), x, y));
+    }
+
+    // Same two-phase scheme as Network.moveClients.
+    @Override
+    public void moveClients(List<NetworkSimulation.ClientMove> moves) {
+        int n = moves.size();
+        int[] movedSlots = new int[n];
+        List<?>[] nearest = new List<?>[n];
+        IntStream indices = IntStream.range(0, n);
+        if (n >= PARALLEL_MOVE_THRESHOLD) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> {
+            NetworkSimulation.ClientMove move = moves.get(i);
+            int slot = slotOf(move.getPhoneNumber());
+            movedSlots[i] = slot;
+            if (slot != NONE) {
+                nearest[i] = findNearestTowers(operatorTable.get(clientOperator[slot]), move.getX(), move.getY());
+            }
+        });
+
+        for (int i = 0; i < n; i++) {
+            int slot = movedSlots[i];
+            if (slot == NONE) continue;
+            NetworkSimulation.ClientMove move = moves.get(i);
+            clientX[slot] = move.getX();
+            clientY[slot] = move.getY();
+            @SuppressWarnings("unchecked")
+            List<NetworkSimulation.CellTower> candidates = (List<NetworkSimulation.CellTower>) nearest[i];
+            setTower(slot, pickNearestTower(candidates));
+        }
+    }
+
+    @Override
+    public void changeOperator(String phoneNumber, String operatorName) {
+        int slot = slotOf(phoneNumber);
+        NetworkSimulation.Operator newOperator = getOperator(operatorName);
+        if (slot == NONE || newOperator == null) return;
+        int noSignal = clientTower[slot] == NONE ? 1 : 0;
+        operatorTable.get(clientOperator[slot]).adjustCounts(-1, -noSignal);
+        newOperator.adjustCounts(1, noSignal);
+        clientOperator[slot] = newOperator.getIndex();
+        setTower(slot, findBestTower(newOperator, clientX[slot], clientY[slot]));
+    }
+
+    @Override
+    public void removeTower(String towerId) {
+        NetworkSimulation.CellTower tower = detachTower(towerId);
+        if (tower != null) {
+            int[] slotsToUpdate = Arrays.copyOf(towerMembers[tower.getIndex()], tower.getClientCount());
+            for (int slot : slotsToUpdate) {
+                setTower(slot, null);
+                NetworkSimulation.Operator operator = operatorTable.get(clientOperator[slot]);
+                setTower(slot, findBestTowerAfterRemoval(operator, clientX[slot], clientY[slot], tower));
+            }
+            unlinkTower(tower);
+        }
+    }
+
+    @Override
+    public boolean countsConsistent() {
+        int operatorCount = operatorTable.size();
+        int[] subscribers = new int[operatorCount];
+        int[] noSignal = new int[operatorCount];
+        int[] towerClients = new int[towerTable.size()];
+        for (int slot = 0; slot < slotCount; slot++) {
+            int operator = clientOperator[slot];
+            if (operator == NONE) continue;
+            subscribers[operator]++;
+            if (clientTower[slot] == NONE) {
+                noSignal[operator]++;
+            } else {
+                towerClients[clientTower[slot]]++;
+            }
+        }
+        for (int i = 0; i < operatorCount; i++) {
+            NetworkSimulation.Operator operator = operatorTable.get(i);
+            if (operator.getSubscriberCount() != subscribers[i] || operator.getNoSignalCount() != noSignal[i]) return false;
+        }
+        for (int i = 0; i < towerClients.length; i++) {
+            if (towerTable.get(i).getClientCount() != towerClients[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String clientOperatorName(String phoneNumber) {
+        int slot = slotOf(phoneNumber);
+        return slot != NONE ? operatorTable.get(clientOperator[slot]).getName() : null;
+    }
+
+    private int slotOf(String phoneNumber) {
+        int phone = phones.find(phoneNumber);
+        return phone < 0 ? NONE : slotByPhone[phone];
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) return freeSlots[--freeCount];
+        if (slotCount == clientX.length) {
+            int capacity = slotCount * 2;
+            clientPhone = Arrays.copyOf(clientPhone, capacity);
+            clientX = Arrays.copyOf(clientX, capacity);
+            clientY = Arrays.copyOf(clientY, capacity);
+            clientOperator = Arrays.copyOf(clientOperator, capacity);
+            clientTower = Arrays.copyOf(clientTower, capacity);
+            clientTowerPosition = Arrays.copyOf(clientTowerPosition, capacity);
+        }
+        return slotCount++;
+    }
+
+    // Counterpart of Client.setCurrentTower for a slot.
+    private void setTower(int slot, NetworkSimulation.CellTower tower) {
+        int oldTower = clientTower[slot];
+        int newTower = tower != null ? tower.getIndex() : NONE;
+        if (oldTower != NONE) {
+            removeMember(slot);
+            if (newTower != oldTower) metrics.recordReassignment();
+        }
+        if (newTower != NONE) addMember(slot, tower);
+        clientTower[slot] = newTower;
+        if ((oldTower == NONE) != (newTower == NONE)) {
+            operatorTable.get(clientOperator[slot]).adjustCounts(0, newTower == NONE ? 1 : -1);
+        }
+    }
+
+    private void addMember(int slot, NetworkSimulation.CellTower tower) {
+        int index = tower.getIndex();
+        int position = tower.getClientCount();
+        int[] members = towerMembers[index];
+        if (position == members.length) {
+            members = Arrays.copyOf(members, position * 2);
+            towerMembers[index] = members;
+        }
+        members[position] = slot;
+        clientTowerPosition[slot] = position;
+        tower.adjustClientCount(1);
+    }
+
+    private void removeMember(int slot) {
+        NetworkSimulation.CellTower tower = towerTable.get(clientTower[slot]);
+        int[] members = towerMembers[tower.getIndex()];
+        int last = tower.getClientCount() - 1;
+        int position = clientTowerPosition[slot];
+        members[position] = members[last];
+        clientTowerPosition[members[position]] = position;
+        tower.adjustClientCount(-1);
+    }
+}
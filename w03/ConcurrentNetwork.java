@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+// Thread-safe storage engine, so queries can be served while moves are ingested.
+// - Towers, operators and registrations change under the write lock of topologyLock.
+// - Client commands hold its read lock, then the client's monitor, then the striped locks
+//   of every tower whose client count they read or change (the old tower and the nearest
+//   candidates), taken in stripe order. Moves that touch different towers run in parallel.
+// - TOWER_CLIENT_COUNT, OPERATOR_SUBSCRIBER_COUNT and NO_SIGNAL_COUNT read volatile
+//   counters without locking.
+// Clients are the same objects as in Network, but they are not put in Operator.clients;
+// operator counters are adjusted atomically instead.
+class ConcurrentNetwork extends NetworkSimulation.TowerNetwork {
+    private static final int STRIPES = 256;
+
+    private final ReentrantReadWriteLock topologyLock = new ReentrantReadWriteLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final Map<String, NetworkSimulation.Client> clients = new ConcurrentHashMap<>();
+    // Every subscriber, including clients replaced by a later ADD_CLIENT with the same number.
+    private final Set<NetworkSimulation.Client> allClients = ConcurrentHashMap.newKeySet();
+
+    public ConcurrentNetwork() {
+        this(Metrics.NONE);
+    }
+
+    public ConcurrentNetwork(Metrics metrics) {
+        super(metrics);
+        towers = new ConcurrentHashMap<>();
+        operators = new ConcurrentHashMap<>();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public void addOperator(String name) {
+        topologyLock.writeLock().lock();
+        try {
+            super.addOperator(name);
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addTower(String towerId, double x, double y, double coverageRadius) {
+        topologyLock.writeLock().lock();
+        try {
+            super.addTower(towerId, x, y, coverageRadius);
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void registerOperatorTower(String operatorName, String towerId) {
+        topologyLock.writeLock().lock();
+        try {
+            super.registerOperatorTower(operatorName, towerId);
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeTower(String towerId) {
+        topologyLock.writeLock().lock();
+        try {
+            NetworkSimulation.CellTower tower = detachTower(towerId);
+            if (tower != null) {
+                for (NetworkSimulation.Client client : new ArrayList<>(tower.getConnectedClients())) {
+                    setTower(client, null);
+                    setTower(client, findBestTowerAfterRemoval(client.getOperator(), client.getX(), client.getY(), tower));
+                }
+                unlinkTower(tower);
+            }
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addClient(String phoneNumber, String operatorName, double x, double y) {
+        topologyLock.readLock().lock();
+        try {
+            NetworkSimulation.Operator operator = getOperator(operatorName);
+            if (operator == null) return;
+            NetworkSimulation.Client client = new NetworkSimulation.Client(phoneNumber, operator, x, y);
+            synchronized (client) {
+                allClients.add(client);
+                clients.put(phoneNumber, client);
+                operator.adjustCountsAtomically(1, 1);
+                assignNearest(client, findNearestTowers(operator, x, y));
+            }
+        } finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeClient(String phoneNumber) {
+        topologyLock.readLock().lock();
+        try {
+            NetworkSimulation.Client client = clients.remove(phoneNumber);
+            if (client == null) return;
+            synchronized (client) {
+                allClients.remove(client);
+                NetworkSimulation.CellTower tower = client.getCurrentTower();
+                if (tower != null) {
+                    ReentrantLock lock = stripeOf(tower);
+                    lock.lock();
+                    try {
+                        tower.removeClient(client);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                client.getOperator().adjustCountsAtomically(-1, tower == null ? -1 : 0);
+            }
+        } finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void moveClient(String phoneNumber, double x, double y) {
+        topologyLock.readLock().lock();
+        try {
+            moveLocked(phoneNumber, x, y, null, null);
+        } finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    // Finds the nearest towers for all moves in parallel, then applies the moves in order.
+    // Each move is atomic on its own; moves from other threads may interleave between them.
+    @Override
+    public void moveClients(List<NetworkSimulation.ClientMove> moves) {
+        topologyLock.readLock().lock();
+        try {
+            int n = moves.size();
+            List<?>[] nearest = new List<?>[n];
+            NetworkSimulation.Operator[] nearestFor = new NetworkSimulation.Operator[n];
+            IntStream indices = IntStream.range(0, n);
+            if (n >= PARALLEL_MOVE_THRESHOLD) {
+                indices = indices.parallel();
+            }
+            indices.forEach(i -> {
+                NetworkSimulation.ClientMove move = moves.get(i);
+                NetworkSimulation.Client client = clients.get(move.getPhoneNumber());
+                if (client != null) {
+                    nearestFor[i] = client.getOperator();
+                    nearest[i] = findNearestTowers(nearestFor[i], move.getX(), move.getY());
+                }
+            });
+            for (int i = 0; i < n; i++) {
+                NetworkSimulation.ClientMove move = moves.get(i);
+                @SuppressWarnings("unchecked")
+                List<NetworkSimulation.CellTower> candidates = (List<NetworkSimulation.CellTower>) nearest[i];
+                moveLocked(move.getPhoneNumber(), move.getX(), move.getY(), candidates, nearestFor[i]);
+            }
+        } finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void changeOperator(String phoneNumber, String operatorName) {
+        topologyLock.readLock().lock();
+        try {
+            NetworkSimulation.Operator newOperator = getOperator(operatorName);
+            if (newOperator == null) return;
+            while (true) {
+                NetworkSimulation.Client client = clients.get(phoneNumber);
+                if (client == null) return;
+                synchronized (client) {
+                    // Removed or replaced while we waited: look the number up again.
+                    if (clients.get(phoneNumber) != client) continue;
+                    int noSignal = client.getCurrentTower() == null ? 1 : 0;
+                    client.getOperator().adjustCountsAtomically(-1, -noSignal);
+                    newOperator.adjustCountsAtomically(1, noSignal);
+                    client.setOperator(newOperator);
+                    assignNearest(client, findNearestTowers(newOperator, client.getX(), client.getY()));
+                    return;
+                }
+            }
+        } finally {
+            topologyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int towerClientCount(String towerId) {
+        NetworkSimulation.CellTower tower = towerId != null ? towers.get(towerId) : null;
+        return tower != null ? tower.getClientCount() : 0;
+    }
+
+    @Override
+    public int operatorSubscriberCount(String operatorName) {
+        NetworkSimulation.Operator operator = operatorName != null ? operators.get(operatorName) : null;
+        return operator != null ? operator.getSubscriberCount() : 0;
+    }
+
+    @Override
+    public String clientOperatorName(String phoneNumber) {
+        NetworkSimulation.Client client = clients.get(phoneNumber);
+        return client != null ? client.getOperator().getName() : null;
+    }
+
+    // Recounts everything under the write lock, so it also serves as the invariant check
+    // for stress runs: subscriber and no-signal counts per operator, and tower client
+    // counts against the tower member sets.
+    @Override
+    public boolean countsConsistent() {
+        topologyLock.writeLock().lock();
+        try {
+            Map<NetworkSimulation.Operator, int[]> expected = new IdentityHashMap<>();
+            Set<NetworkSimulation.CellTower> seenTowers = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (NetworkSimulation.Client client : allClients) {
+                int[] counts = expected.computeIfAbsent(client.getOperator(), k -> new int[2]);
+                counts[0]++;
+                NetworkSimulation.CellTower tower = client.getCurrentTower();
+                if (tower == null) {
+                    counts[1]++;
+                } else {
+                    if (!tower.getConnectedClients().contains(client)) return false;
+                    seenTowers.add(tower);
+                }
+            }
+            for (Map.Entry<NetworkSimulation.Operator, int[]> entry : expected.entrySet()) {
+                NetworkSimulation.Operator operator = entry.getKey();
+                if (operator.getSubscriberCount() != entry.getValue()[0]) return false;
+                if (operator.getNoSignalCount() != entry.getValue()[1]) return false;
+            }
+            for (NetworkSimulation.Operator operator : operators.values()) {
+                if (!expected.containsKey(operator) && (operator.getSubscriberCount() != 0 || operator.getNoSignalCount() != 0)) {
+                    return false;
+                }
+            }
+            for (NetworkSimulation.CellTower tower : seenTowers) {
+                if (tower.getClientCount() != tower.getConnectedClients().size()) return false;
+            }
+            return true;
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void snapshot(Path path) throws IOException {
+        topologyLock.writeLock().lock();
+        try {
+            super.snapshot(path);
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void restore(Path path) throws IOException {
+        topologyLock.writeLock().lock();
+        try {
+            super.restore(path);
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void collectSnapshotEntities(List<NetworkSimulation.CellTower> towerList, List<NetworkSimulation.Operator> operatorList) {
+        Set<NetworkSimulation.CellTower> towerSet = new LinkedHashSet<>(towers.values());
+        Set<NetworkSimulation.Operator> operatorSet = new LinkedHashSet<>(operators.values());
+        for (NetworkSimulation.Client client : allClients) {
+            operatorSet.add(client.getOperator());
+            if (client.getCurrentTower() != null) towerSet.add(client.getCurrentTower());
+        }
+        for (NetworkSimulation.Operator operator : operatorSet) {
+            towerSet.addAll(operator.getTowers());
+        }
+        towerList.addAll(towerSet);
+        operatorList.addAll(operatorSet);
+    }
+
+    @Override
+    protected void writeClients(SnapshotWriter out, Map<NetworkSimulation.CellTower, Integer> towerPositions,
+                                Map<NetworkSimulation.Operator, Integer> operatorPositions) throws IOException {
+        out.putInt(allClients.size());
+        for (NetworkSimulation.Client client : allClients) {
+            out.putString(client.getPhoneNumber());
+            out.putInt(operatorPositions.get(client.getOperator()));
+            out.putDouble(client.getX());
+            out.putDouble(client.getY());
+            out.putInt(client.getCurrentTower() != null ? towerPositions.get(client.getCurrentTower()) : -1);
+            out.putByte(clients.get(client.getPhoneNumber()) == client ? 1 : 0);
+        }
+    }
+
+    @Override
+    protected void restoreClient(String phoneNumber, NetworkSimulation.Operator operator, double x, double y,
+                                 NetworkSimulation.CellTower tower, boolean current) {
+        NetworkSimulation.Client client = new NetworkSimulation.Client(phoneNumber, operator, x, y);
+        allClients.add(client);
+        if (current) clients.put(phoneNumber, client);
+        operator.adjustCountsAtomically(1, 1);
+        setTower(client, tower);
+    }
+
+    @Override
+    public void setTowerCapacity(String towerId, int capacity) {
+        topologyLock.writeLock().lock();
+        try {
+            super.setTowerCapacity(towerId, capacity);
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    // Runs under the write lock, so no client command can see a half-applied pass.
+    @Override
+    public NetworkSimulation.RebalanceResult rebalance() {
+        topologyLock.writeLock().lock();
+        try {
+            return super.rebalance();
+        } finally {
+            topologyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void collectConnectedClients(NetworkSimulation.CellTower tower, List<RebalanceClient> result) {
+        for (NetworkSimulation.Client client : tower.getConnectedClients()) {
+            result.add(new RebalanceClient(client, client.getPhoneNumber(), client.getOperator(), client.getX(), client.getY()));
+        }
+    }
+
+    @Override
+    protected void reconnect(RebalanceClient client, NetworkSimulation.CellTower tower) {
+        setTower((NetworkSimulation.Client) client.handle, tower);
+    }
+
+    // Moves one client, with the caller holding the read lock. Candidates may be precomputed
+    // for the same position and candidatesFor; they are recomputed if the client's operator
+    // is different by now.
+    private void moveLocked(String phoneNumber, double x, double y, List<NetworkSimulation.CellTower> candidates,
+                            NetworkSimulation.Operator candidatesFor) {
+        while (true) {
+            NetworkSimulation.Client client = clients.get(phoneNumber);
+            if (client == null) return;
+            synchronized (client) {
+                // Removed or replaced while we waited: look the number up again.
+                if (clients.get(phoneNumber) != client) continue;
+                NetworkSimulation.Operator operator = client.getOperator();
+                List<NetworkSimulation.CellTower> nearest = candidates;
+                if (nearest == null || candidatesFor != operator) {
+                    nearest = findNearestTowers(operator, x, y);
+                }
+                client.setLocation(x, y);
+                assignNearest(client, nearest);
+                return;
+            }
+        }
+    }
+
+    // Moves the client, whose monitor the caller holds, to the least loaded of the equally
+    // near candidates, with the stripes of every tower involved locked.
+    private void assignNearest(NetworkSimulation.Client client, List<NetworkSimulation.CellTower> candidates) {
+        NetworkSimulation.CellTower oldTower = client.getCurrentTower();
+        int[] locked = lockStripes(oldTower, candidates);
+        try {
+            setTower(client, pickNearestTower(candidates));
+        } finally {
+            for (int i = locked.length - 1; i >= 0; i--) {
+                stripes[locked[i]].unlock();
+            }
+        }
+    }
+
+    // Client.setCurrentTower plus the operator's no-signal counter, which Client cannot
+    // update here because the client is not in Operator.clients.
+    private void setTower(NetworkSimulation.Client client, NetworkSimulation.CellTower tower) {
+        boolean hadSignal = client.getCurrentTower() != null;
+        connect(client, tower);
+        if (hadSignal != (tower != null)) {
+            client.getOperator().adjustCountsAtomically(0, tower != null ? -1 : 1);
+        }
+    }
+
+    private int[] lockStripes(NetworkSimulation.CellTower oldTower, List<NetworkSimulation.CellTower> candidates) {
+        int count = (oldTower != null ? 1 : 0) + (candidates != null ? candidates.size() : 0);
+        int[] indices = new int[count];
+        int n = 0;
+        if (oldTower != null) indices[n++] = stripeIndex(oldTower);
+        if (candidates != null) {
+            for (NetworkSimulation.CellTower tower : candidates) indices[n++] = stripeIndex(tower);
+        }
+        Arrays.sort(indices);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || indices[distinct - 1] != indices[i]) indices[distinct++] = indices[i];
+        }
+        int[] locked = Arrays.copyOf(indices, distinct);
+        for (int index : locked) {
+            stripes[index].lock();
+        }
+        return locked;
+    }
+
+    private ReentrantLock stripeOf(NetworkSimulation.CellTower tower) {
+        return stripes[stripeIndex(tower)];
+    }
+
+    private static int stripeIndex(NetworkSimulation.CellTower tower) {
+        int hash = System.identityHashCode(tower);
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for the command loop, enabled with --metrics or --metrics-dump: per command type
+// the number executed and a latency histogram in nanoseconds, the candidate towers scanned
+// per tower lookup, and how often a client left its tower for another one or for no signal.
+// Each engine records into the Metrics passed to its constructor; Metrics.NONE records
+// nothing and allocates no histograms.
+class Metrics {
+    static final Metrics NONE = new Metrics(false);
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_LABELS = {"p50", "p90", "p99", "p99.9"};
+
+    private final boolean enabled;
+    private final Histogram[] commandLatencies = new Histogram[NetworkSimulation.Command.values().length];
+    private final Histogram towerLookups;
+    private final LongAdder reassignments;
+
+    public Metrics() {
+        this(true);
+    }
+
+    private Metrics(boolean enabled) {
+        this.enabled = enabled;
+        this.towerLookups = enabled ? new Histogram() : null;
+        this.reassignments = enabled ? new LongAdder() : null;
+        for (int i = 0; enabled && i < commandLatencies.length; i++) {
+            commandLatencies[i] = new Histogram();
+        }
+    }
+
+    public void recordCommand(NetworkSimulation.Command command, long nanos) {
+        if (enabled) commandLatencies[command.ordinal()].record(nanos);
+    }
+
+    // One tower lookup that offered the given number of candidate towers to a TowerSelection.
+    public void recordTowerLookup(int candidates) {
+        if (enabled) towerLookups.record(candidates);
+    }
+
+    public void recordReassignment() {
+        if (enabled) reassignments.increment();
+    }
+
+    // The STATS report: one line per command type seen so far, then the lookup and
+    // reassignment counters.
+    public String report() {
+        StringBuilder text = new StringBuilder();
+        for (NetworkSimulation.Command command : NetworkSimulation.Command.values()) {
+            Histogram latency = commandLatencies[command.ordinal()];
+            if (latency.getCount() == 0) continue;
+            text.append(command.name()).append(": ").append(latency.getCount()).append(" commands, latency ns:");
+            appendDistribution(text, latency);
+            text.append(System.lineSeparator());
+        }
+        text.append("Tower lookups: ").append(towerLookups.getCount()).append(" calls, ")
+            .append(towerLookups.getSum()).append(" candidates scanned, per call:");
+        appendDistribution(text, towerLookups);
+        text.append(System.lineSeparator());
+        text.append("Tower reassignments: ").append(reassignments.sum()).append(System.lineSeparator());
+        return text.toString();
+    }
+
+    // Writes the report to the file through a temporary sibling, so a reader never sees
+    // a half-written report.
+    public void dump(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path temporary = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        Files.write(temporary, report().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void appendDistribution(StringBuilder text, Histogram histogram) {
+        text.append(String.format(Locale.ROOT, " mean %.1f", histogram.getMean()));
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            text.append(", ").append(PERCENTILE_LABELS[i]).append(' ').append(histogram.getValueAtPercentile(PERCENTILES[i]));
+        }
+        text.append(", max ").append(histogram.getMax());
+    }
+}
@@ -0,0 +1,475 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Throughput and allocation benchmark for the NetworkSimulation engines on synthetic cities.
+// Usage: java NetworkBenchmark [--engine=object|compact|concurrent|all] [--towers=N]
+//        [--operators=N] [--clients-per-tower=N] [--radius=R] [--warmup=N] [--iterations=N]
+//        [--seed=N] [--stress=THREADS] [--stress-ops=N]
+// Towers are spread uniformly over a square with one tower per SPACING x SPACING area on
+// average, so the default radius puts each point in range of a handful of towers.
+// Every benchmark prints the median time per operation over the measured iterations, the
+// matching throughput and the bytes allocated per operation by the benchmark thread (the
+// parallel phase of moveClients allocates on pool threads, which is not counted).
+// bench/ holds a JMH harness running the same mixes in forked JVMs. benchmark-baseline.txt
+// is recorded with it and is the baseline to compare against; this harness is for quick
+// runs and the stress test.
+// With --stress=N the benchmarks are replaced by a stress run of ConcurrentNetwork on the
+// city: N threads each perform --stress-ops random adds, moves, batch moves, removals,
+// operator changes, tower removals and additions (a tenth of the towers each) and lock-free
+// count reads. Every thread
+// adds and removes only its own share of the phone numbers, so it knows which of them are
+// connected, but moves and operator changes pick from all numbers. Afterwards it checks
+// countsConsistent(), that every operator's subscriber count matches its clients, and that
+// the tower client counts plus the no-signal counts add up to the connected clients.
+public class NetworkBenchmark {
+    private static final double SPACING = 10;
+    private static final int BATCH_SIZE = 4096;
+    private static final int NO_SIGNAL_QUERIES = 2000;
+    private static final int STRESS_BATCH_SIZE = 64;
+
+    // A synthetic city: towers, each registered to one operator, and clients placed near
+    // random towers, plus a second position per client for the move benchmarks.
+    static class City {
+        final int operatorCount;
+        final String[] towerIds;
+        final double[] towerX;
+        final double[] towerY;
+        final double radius;
+        final int[] towerOperator;
+        final String[] phones;
+        final int[] clientOperator;
+        final double[] clientX;
+        final double[] clientY;
+        final double[] moveX;
+        final double[] moveY;
+
+        City(int towers, int operators, int clientsPerTower, double radius, long seed) {
+            Random random = new Random(seed);
+            double side = Math.sqrt(towers) * SPACING;
+            operatorCount = operators;
+            towerIds = new String[towers];
+            towerX = new double[towers];
+            towerY = new double[towers];
+            towerOperator = new int[towers];
+            this.radius = radius;
+            for (int i = 0; i < towers; i++) {
+                towerIds[i] = "T" + i;
+                towerX[i] = random.nextDouble() * side;
+                towerY[i] = random.nextDouble() * side;
+                towerOperator[i] = random.nextInt(operators);
+            }
+            int clients = towers * clientsPerTower;
+            phones = new String[clients];
+            clientOperator = new int[clients];
+            clientX = new double[clients];
+            clientY = new double[clients];
+            moveX = new double[clients];
+            moveY = new double[clients];
+            for (int i = 0; i < clients; i++) {
+                phones[i] = "+1" + (5550000000L + i);
+                clientOperator[i] = random.nextInt(operators);
+                // Clustered around towers like real subscribers, with some spilling out of range.
+                int near = random.nextInt(towers);
+                clientX[i] = towerX[near] + random.nextGaussian() * radius;
+                clientY[i] = towerY[near] + random.nextGaussian() * radius;
+                moveX[i] = clientX[i] + random.nextGaussian() * SPACING;
+                moveY[i] = clientY[i] + random.nextGaussian() * SPACING;
+            }
+        }
+
+        static String operatorName(int operator) {
+            return "OP" + operator;
+        }
+
+        void addTowers(NetworkSimulation.NetworkModel network) {
+            for (int i = 0; i < operatorCount; i++) {
+                network.addOperator(operatorName(i));
+            }
+            for (int i = 0; i < towerIds.length; i++) {
+                network.addTower(towerIds[i], towerX[i], towerY[i], radius);
+                network.registerOperatorTower(operatorName(towerOperator[i]), towerIds[i]);
+            }
+        }
+
+        void addClients(NetworkSimulation.NetworkModel network) {
+            for (int i = 0; i < phones.length; i++) {
+                network.addClient(phones[i], operatorName(clientOperator[i]), clientX[i], clientY[i]);
+            }
+        }
+    }
+
+    interface Operation {
+        // Prepares a fresh network outside the timed region.
+        NetworkSimulation.NetworkModel setUp(City city, Supplier<NetworkSimulation.NetworkModel> engine);
+        // Runs the timed part and returns the number of operations performed.
+        int run(City city, NetworkSimulation.NetworkModel network);
+    }
+
+    static class Benchmark {
+        final String name;
+        final Operation operation;
+
+        Benchmark(String name, Operation operation) {
+            this.name = name;
+            this.operation = operation;
+        }
+    }
+
+    private static NetworkSimulation.NetworkModel withTowers(City city, Supplier<NetworkSimulation.NetworkModel> engine) {
+        NetworkSimulation.NetworkModel network = engine.get();
+        city.addTowers(network);
+        return network;
+    }
+
+    private static NetworkSimulation.NetworkModel populated(City city, Supplier<NetworkSimulation.NetworkModel> engine) {
+        NetworkSimulation.NetworkModel network = withTowers(city, engine);
+        city.addClients(network);
+        return network;
+    }
+
+    static List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<>();
+        list.add(new Benchmark("addClient", new Operation() {
+            public NetworkSimulation.NetworkModel setUp(City city, Supplier<NetworkSimulation.NetworkModel> engine) {
+                return withTowers(city, engine);
+            }
+
+            public int run(City city, NetworkSimulation.NetworkModel network) {
+                city.addClients(network);
+                return city.phones.length;
+            }
+        }));
+        list.add(new Benchmark("moveClient", new Operation() {
+            public NetworkSimulation.NetworkModel setUp(City city, Supplier<NetworkSimulation.NetworkModel> engine) {
+                return populated(city, engine);
+            }
+
+            public int run(City city, NetworkSimulation.NetworkModel network) {
+                for (int i = 0; i < city.phones.length; i++) {
+                    network.moveClient(city.phones[i], city.moveX[i], city.moveY[i]);
+                }
+                return city.phones.length;
+            }
+        }));
+        list.add(new Benchmark("moveClients", new Operation() {
+            public NetworkSimulation.NetworkModel setUp(City city, Supplier<NetworkSimulation.NetworkModel> engine) {
+                return populated(city, engine);
+            }
+
+            public int run(City city, NetworkSimulation.NetworkModel network) {
+                List<NetworkSimulation.ClientMove> batch = new ArrayList<>(BATCH_SIZE);
+                for (int i = 0; i < city.phones.length; i++) {
+                    batch.add(new NetworkSimulation.ClientMove(city.phones[i], city.moveX[i], city.moveY[i]));
+                    if (batch.size() == BATCH_SIZE) {
+                        network.moveClients(batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) network.moveClients(batch);
+                return city.phones.length;
+            }
+        }));
+        list.add(new Benchmark("removeClient", new Operation() {
+            public NetworkSimulation.NetworkModel setUp(City city, Supplier<NetworkSimulation.NetworkModel> engine) {
+                return populated(city, engine);
+            }
+
+            public int run(City city, NetworkSimulation.NetworkModel network) {
+                for (String phone : city.phones) {
+                    network.removeClient(phone);
+                }
+                return city.phones.length;
+            }
+        }));
+        list.add(new Benchmark("removeTower", new Operation() {
+            public NetworkSimulation.NetworkModel setUp(City city, Supplier<NetworkSimulation.NetworkModel> engine) {
+                return populated(city, engine);
+            }
+
+            // Removes every tenth tower; each removal re-homes that tower's clients.
+            public int run(City city, NetworkSimulation.NetworkModel network) {
+                int removed = 0;
+                for (int i = 0; i < city.towerIds.length; i += 10) {
+                    network.removeTower(city.towerIds[i]);
+                    removed++;
+                }
+                return removed;
+            }
+        }));
+        list.add(new Benchmark("towerClientCount", new Operation() {
+            public NetworkSimulation.NetworkModel setUp(City city, Supplier<NetworkSimulation.NetworkModel> engine) {
+                return populated(city, engine);
+            }
+
+            public int run(City city, NetworkSimulation.NetworkModel network) {
+                int sum = 0;
+                for (int round = 0; round < 10; round++) {
+                    for (String towerId : city.towerIds) {
+                        sum += network.towerClientCount(towerId);
+                    }
+                }
+                blackhole += sum;
+                return 10 * city.towerIds.length;
+            }
+        }));
+        list.add(new Benchmark("noSignalCount", new Operation() {
+            public NetworkSimulation.NetworkModel setUp(City city, Supplier<NetworkSimulation.NetworkModel> engine) {
+                return populated(city, engine);
+            }
+
+            public int run(City city, NetworkSimulation.NetworkModel network) {
+                int sum = 0;
+                for (int i = 0; i < NO_SIGNAL_QUERIES; i++) {
+                    sum += network.noSignalCounts().size();
+                }
+                blackhole += sum;
+                return NO_SIGNAL_QUERIES;
+            }
+        }));
+        return list;
+    }
+
+    // Keeps query results alive so the JIT cannot drop the query loops.
+    private static long blackhole;
+
+    static Supplier<NetworkSimulation.NetworkModel> engine(String name) {
+        switch (name) {
+            case "object": return NetworkSimulation.Network::new;
+            case "compact": return CompactNetwork::new;
+            case "concurrent": return ConcurrentNetwork::new;
+            default: throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+
+    // Bytes allocated so far by the current thread, or -1 if the JVM cannot tell.
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        String engines = "all";
+        int towers = 10000;
+        int operators = 4;
+        int clientsPerTower = 20;
+        double radius = 15;
+        int warmup = 3;
+        int iterations = 5;
+        long seed = 42;
+        int stressThreads = 0;
+        int stressOps = 100_000;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq >= 0 ? arg.substring(0, eq) : arg;
+            String value = eq >= 0 ? arg.substring(eq + 1) : "";
+            switch (name) {
+                case "--engine": engines = value; break;
+                case "--towers": towers = Integer.parseInt(value); break;
+                case "--operators": operators = Integer.parseInt(value); break;
+                case "--clients-per-tower": clientsPerTower = Integer.parseInt(value); break;
+                case "--radius": radius = Double.parseDouble(value); break;
+                case "--warmup": warmup = Integer.parseInt(value); break;
+                case "--iterations": iterations = Integer.parseInt(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--stress": stressThreads = Integer.parseInt(value); break;
+                case "--stress-ops": stressOps = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        List<String> engineNames = engines.equals("all")
+                ? Arrays.asList("object", "compact", "concurrent")
+                : Arrays.asList(engines.split(","));
+
+        City city = new City(towers, operators, clientsPerTower, radius, seed);
+        if (stressThreads > 0) {
+            stress(city, stressThreads, stressOps, seed);
+            return;
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("# towers=%d operators=%d clients=%d radius=%s warmup=%d iterations=%d seed=%d%n",
+                towers, operators, city.phones.length, radius, warmup, iterations, seed);
+        System.out.printf("%-11s %-17s %12s %14s %12s%n", "engine", "benchmark", "ns/op", "ops/s", "bytes/op");
+        for (String engineName : engineNames) {
+            Supplier<NetworkSimulation.NetworkModel> engine = engine(engineName);
+            for (Benchmark benchmark : benchmarks()) {
+                double[] nanosPerOp = new double[iterations];
+                double[] bytesPerOp = new double[iterations];
+                for (int i = -warmup; i < iterations; i++) {
+                    NetworkSimulation.NetworkModel network = benchmark.operation.setUp(city, engine);
+                    long bytesBefore = allocatedBytes(threads);
+                    long start = System.nanoTime();
+                    int ops = benchmark.operation.run(city, network);
+                    long elapsed = System.nanoTime() - start;
+                    long bytesAfter = allocatedBytes(threads);
+                    if (i >= 0) {
+                        nanosPerOp[i] = (double) elapsed / ops;
+                        bytesPerOp[i] = bytesBefore >= 0 ? (double) (bytesAfter - bytesBefore) / ops : -1;
+                    }
+                }
+                Arrays.sort(nanosPerOp);
+                Arrays.sort(bytesPerOp);
+                double nanos = nanosPerOp[iterations / 2];
+                System.out.printf("%-11s %-17s %12.1f %14.0f %12.1f%n", engineName, benchmark.name,
+                        nanos, 1e9 / nanos, bytesPerOp[iterations / 2]);
+            }
+        }
+        if (blackhole == 42) System.out.println();
+    }
+
+    // The stress run described at the top.
+    private static void stress(City city, int threadCount, int opsPerThread, long seed) {
+        ConcurrentNetwork network = new ConcurrentNetwork();
+        city.addTowers(network);
+        city.addClients(network);
+        Set<String> liveTowers = ConcurrentHashMap.newKeySet();
+        liveTowers.addAll(Arrays.asList(city.towerIds));
+        // A tenth of the towers, in random order, for the threads to remove.
+        List<String> removable = new ArrayList<>(Arrays.asList(city.towerIds));
+        Collections.shuffle(removable, new Random(seed));
+        removable = removable.subList(0, city.towerIds.length / 10);
+        List<String> toRemove = removable;
+        AtomicInteger removed = new AtomicInteger();
+        AtomicInteger added = new AtomicInteger();
+        AtomicLong connected = new AtomicLong();
+        AtomicLong negativeReads = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(threadCount);
+        CountDownLatch go = new CountDownLatch(1);
+        double side = Math.sqrt(city.towerIds.length) * SPACING;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int owner = t;
+            long threadSeed = seed + 1 + t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(threadSeed);
+                // Connection state of the numbers this thread owns: i % threadCount == owner.
+                boolean[] live = new boolean[city.phones.length];
+                int liveCount = 0;
+                for (int i = owner; i < city.phones.length; i += threadCount) {
+                    live[i] = true;
+                    liveCount++;
+                }
+                int owned = (city.phones.length - owner + threadCount - 1) / threadCount;
+                List<NetworkSimulation.ClientMove> batch = new ArrayList<>(STRESS_BATCH_SIZE);
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int op = 0; op < opsPerThread; op++) {
+                    int roll = random.nextInt(100);
+                    int any = random.nextInt(city.phones.length);
+                    int own = owned > 0 ? owner + threadCount * random.nextInt(owned) : -1;
+                    if (roll < 35) {
+                        network.moveClient(city.phones[any], city.moveX[any] + random.nextGaussian() * SPACING,
+                                city.moveY[any] + random.nextGaussian() * SPACING);
+                    } else if (roll < 40) {
+                        batch.clear();
+                        for (int i = 0; i < STRESS_BATCH_SIZE; i++) {
+                            int j = random.nextInt(city.phones.length);
+                            batch.add(new NetworkSimulation.ClientMove(city.phones[j], city.clientX[j], city.clientY[j]));
+                        }
+                        network.moveClients(batch);
+                    } else if (roll < 55) {
+                        if (own >= 0 && !live[own]) {
+                            network.addClient(city.phones[own], City.operatorName(random.nextInt(city.operatorCount)),
+                                    city.clientX[own], city.clientY[own]);
+                            live[own] = true;
+                            liveCount++;
+                        }
+                    } else if (roll < 70) {
+                        if (own >= 0 && live[own]) {
+                            network.removeClient(city.phones[own]);
+                            live[own] = false;
+                            liveCount--;
+                        }
+                    } else if (roll < 85) {
+                        network.changeOperator(city.phones[any], City.operatorName(random.nextInt(city.operatorCount)));
+                    } else if (roll < 86) {
+                        int index = removed.getAndIncrement();
+                        if (index < toRemove.size()) {
+                            network.removeTower(toRemove.get(index));
+                            liveTowers.remove(toRemove.get(index));
+                        }
+                    } else if (roll < 87) {
+                        // As many new towers as removed ones, so the city keeps its density.
+                        int index = added.getAndIncrement();
+                        if (index >= toRemove.size()) continue;
+                        String towerId = "S" + index;
+                        network.addTower(towerId, random.nextDouble() * side, random.nextDouble() * side, city.radius);
+                        network.registerOperatorTower(City.operatorName(random.nextInt(city.operatorCount)), towerId);
+                        liveTowers.add(towerId);
+                    } else {
+                        // Lock-free reads racing with the writers above.
+                        int towerIndex = random.nextInt(city.towerIds.length);
+                        if (network.towerClientCount(city.towerIds[towerIndex]) < 0) negativeReads.incrementAndGet();
+                        String operator = City.operatorName(random.nextInt(city.operatorCount));
+                        if (network.operatorSubscriberCount(operator) < 0) negativeReads.incrementAndGet();
+                    }
+                }
+                connected.addAndGet(liveCount);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            ready.await();
+            long start = System.nanoTime();
+            go.countDown();
+            for (Thread thread : threads) thread.join();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("# stress: threads=%d ops/thread=%d towers=%d clients=%d seed=%d%n", threadCount,
+                    opsPerThread, city.towerIds.length, city.phones.length, seed);
+            System.out.printf("%.1f ms, %.0f ops/s, %d towers removed, %d added, %d clients connected%n", elapsed / 1e6,
+                    (double) threadCount * opsPerThread * 1e9 / elapsed, Math.min(removed.get(), toRemove.size()),
+                    Math.min(added.get(), toRemove.size()), connected.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        List<String> failures = new ArrayList<>();
+        if (negativeReads.get() != 0) failures.add(negativeReads.get() + " negative counts read during the run");
+        if (!network.countsConsistent()) failures.add("countsConsistent() failed");
+        Map<String, Integer> subscribers = new TreeMap<>();
+        int clients = 0;
+        for (String phone : city.phones) {
+            String operator = network.clientOperatorName(phone);
+            if (operator == null) continue;
+            subscribers.merge(operator, 1, Integer::sum);
+            clients++;
+        }
+        if (clients != connected.get()) {
+            failures.add(clients + " clients in the network, but the threads left " + connected.get() + " connected");
+        }
+        for (int i = 0; i < city.operatorCount; i++) {
+            String operator = City.operatorName(i);
+            int expected = subscribers.getOrDefault(operator, 0);
+            if (network.operatorSubscriberCount(operator) != expected) {
+                failures.add(operator + " counts " + network.operatorSubscriberCount(operator) + " subscribers, has " + expected);
+            }
+        }
+        long onTowers = 0;
+        for (String towerId : liveTowers) onTowers += network.towerClientCount(towerId);
+        long noSignal = 0;
+        for (int count : network.noSignalCounts().values()) noSignal += count;
+        if (onTowers + noSignal != clients) {
+            failures.add(onTowers + " clients on towers + " + noSignal + " without signal != " + clients + " clients");
+        }
+        if (!failures.isEmpty()) throw new AssertionError("stress invariants violated: " + failures);
+        System.out.println("invariants hold");
+    }
+}
@@ -1,14 +1,52 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class NetworkSimulation {
 
     static class CellTower {
+        public static final int UNLIMITED = Integer.MAX_VALUE;
+
         private String towerId;
         private double x;
         private double y;
         private double coverageRadius;
         private Set<Client> connectedClients;
+        // Operators that registered this tower, kept in step with Operator.addTower/removeTower.
+        private Set<Operator> operators;
+        // Towers in the network whose coverage overlaps this one, maintained by Network.
+        private Set<CellTower> neighbours;
+        // Volatile so that ConcurrentNetwork can answer counts without locking; writers are
+        // always serialized, either by being single-threaded or by ConcurrentNetwork's locks.
+        private volatile int clientCount;
+        // Position in a CompactNetwork's tower table, or -1.
+        private int index = -1;
+        // Set once REMOVE_TOWER has taken the tower out of the network.
+        private boolean removed;
+        // Clients REBALANCE may leave connected; normal tower selection ignores it.
+        private int capacity = UNLIMITED;
 
         public CellTower(String towerId, double x, double y, double coverageRadius) {
             this.towerId = towerId;
@@ -16,6 +54,8 @@ public class NetworkSimulation {
             this.y = y;
             this.coverageRadius = coverageRadius;
             this.connectedClients = new HashSet<>();
+            this.operators = new HashSet<>();
+            this.neighbours = new HashSet<>();
         }
 
         public String getTowerId() { return towerId; }
@@ -23,51 +63,414 @@ public class NetworkSimulation {
         public double getY() { return y; }
         public double getCoverageRadius() { return coverageRadius; }
         public Set<Client> getConnectedClients() { return connectedClients; }
-        public int getClientCount() { return connectedClients.size(); }
+        public int getClientCount() { return clientCount; }
+        public Set<Operator> getOperators() { return operators; }
+        public Set<CellTower> getNeighbours() { return neighbours; }
+        public int getIndex() { return index; }
+        void setIndex(int index) { this.index = index; }
+        public boolean isRemoved() { return removed; }
+        void markRemoved() { this.removed = true; }
+        public int getCapacity() { return capacity; }
+
+        // A negative capacity removes the limit.
+        public void setCapacity(int capacity) {
+            this.capacity = capacity < 0 ? UNLIMITED : capacity;
+        }
+
+        // True if some point could lie within both coverage circles. Slightly generous so that
+        // rounding in the distance never drops a real overlap.
+        public boolean overlaps(CellTower other) {
+            double dx = x - other.x;
+            double dy = y - other.y;
+            return Math.sqrt(dx * dx + dy * dy) <= (coverageRadius + other.coverageRadius) * (1 + 1e-9);
+        }
 
         public void addClient(Client client) {
-            connectedClients.add(client);
+            if (connectedClients.add(client)) clientCount++;
         }
 
         public void removeClient(Client client) {
-            connectedClients.remove(client);
+            if (connectedClients.remove(client)) clientCount--;
+        }
+
+        // Used by CompactNetwork, which tracks connected clients by slot instead of in the set.
+        void adjustClientCount(int delta) {
+            clientCount += delta;
         }
     }
 
     static class Operator {
+        private static final AtomicIntegerFieldUpdater<Operator> SUBSCRIBER_COUNT =
+                AtomicIntegerFieldUpdater.newUpdater(Operator.class, "subscriberCount");
+        private static final AtomicIntegerFieldUpdater<Operator> NO_SIGNAL_COUNT =
+                AtomicIntegerFieldUpdater.newUpdater(Operator.class, "noSignalCount");
+
         private String name;
         private Set<Client> clients;
         private Set<CellTower> towers;
+        private TowerGrid towerGrid;
+        // Counters are volatile so that ConcurrentNetwork can read them without locking.
+        private volatile int subscriberCount;
+        // Subscribers in clients whose current tower is null, kept up to date by addClient,
+        // removeClient and Client.setCurrentTower.
+        private volatile int noSignalCount;
+        // Position in a CompactNetwork's operator table, or -1.
+        private int index = -1;
 
         public Operator(String name) {
             this.name = name;
             this.clients = new HashSet<>();
             this.towers = new HashSet<>();
+            this.towerGrid = new TowerGrid();
         }
 
         public String getName() { return name; }
         public Set<Client> getClients() { return clients; }
         public Set<CellTower> getTowers() { return towers; }
+        public TowerGrid getTowerGrid() { return towerGrid; }
+        public int getIndex() { return index; }
+        void setIndex(int index) { this.index = index; }
 
         public void addClient(Client client) {
-            clients.add(client);
+            if (clients.add(client)) {
+                subscriberCount++;
+                if (client.getCurrentTower() == null) noSignalCount++;
+            }
         }
 
         public void removeClient(Client client) {
-            clients.remove(client);
+            if (clients.remove(client)) {
+                subscriberCount--;
+                if (client.getCurrentTower() == null) noSignalCount--;
+            }
         }
 
         public int getSubscriberCount() {
-            return clients.size();
+            return subscriberCount;
+        }
+
+        // Used by CompactNetwork, which keeps subscribers in arrays instead of the clients set.
+        void adjustCounts(int subscriberDelta, int noSignalDelta) {
+            subscriberCount += subscriberDelta;
+            noSignalCount += noSignalDelta;
+        }
+
+        // Thread-safe adjustCounts, for ConcurrentNetwork.
+        void adjustCountsAtomically(int subscriberDelta, int noSignalDelta) {
+            if (subscriberDelta != 0) SUBSCRIBER_COUNT.addAndGet(this, subscriberDelta);
+            if (noSignalDelta != 0) NO_SIGNAL_COUNT.addAndGet(this, noSignalDelta);
+        }
+
+        public int getNoSignalCount() {
+            return noSignalCount;
+        }
+
+        // Called by a client whose current tower went from null to non-null or back.
+        void signalChanged(Client client, boolean hasSignal) {
+            if (clients.contains(client)) {
+                noSignalCount += hasSignal ? -1 : 1;
+            }
+        }
+
+        // Recounts subscribers without a tower; used to check noSignalCount in debug runs.
+        public int countNoSignalClients() {
+            int count = 0;
+            for (Client client : clients) {
+                if (client.getCurrentTower() == null) count++;
+            }
+            return count;
         }
 
         public void addTower(CellTower tower) {
-            towers.add(tower);
+            if (towers.add(tower)) {
+                towerGrid.add(tower);
+                tower.getOperators().add(this);
+            }
         }
 
         public void removeTower(CellTower tower) {
-            towers.remove(tower);
+            if (towers.remove(tower)) {
+                towerGrid.remove(tower);
+                tower.getOperators().remove(this);
+            }
+        }
+    }
+
+    // Key of one square cell in a TowerGrid level.
+    static class GridCell {
+        private final long cx;
+        private final long cy;
+
+        public GridCell(long cx, long cy) {
+            this.cx = cx;
+            this.cy = cy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GridCell)) return false;
+            GridCell other = (GridCell) o;
+            return cx == other.cx && cy == other.cy;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(cx * 31 + cy);
+        }
+    }
+
+    // Spatial index over the towers of one operator.
+    // Towers are bucketed into levels by coverage radius: on level k the cells are 2^k wide and
+    // hold towers with radius at most 2^(k-1), so a client can only be covered by towers stored
+    // in the 3x3 block of cells around it on each level.
+    static class TowerGrid {
+        private static final int MIN_LEVEL = -30;
+        private static final int MAX_LEVEL = 60;
+        private static final double MAX_CELL_INDEX = 0x1p52;
+
+        private final TreeMap<Integer, Map<GridCell, List<CellTower>>> levels = new TreeMap<>();
+        // Towers with a non-finite position or radius, or too large to place on a level.
+        private final List<CellTower> unbounded = new ArrayList<>();
+
+        public void add(CellTower tower) {
+            double radius = tower.getCoverageRadius();
+            if (radius < 0) return; // can never cover a client
+            int level = levelFor(tower);
+            if (level == Integer.MIN_VALUE) {
+                unbounded.add(tower);
+                return;
+            }
+            double size = Math.scalb(1.0, level);
+            GridCell cell = new GridCell((long) Math.floor(tower.getX() / size), (long) Math.floor(tower.getY() / size));
+            levels.computeIfAbsent(level, k -> new HashMap<>())
+                  .computeIfAbsent(cell, k -> new ArrayList<>())
+                  .add(tower);
+        }
+
+        public void remove(CellTower tower) {
+            double radius = tower.getCoverageRadius();
+            if (radius < 0) return;
+            int level = levelFor(tower);
+            if (level == Integer.MIN_VALUE) {
+                unbounded.remove(tower);
+                return;
+            }
+            Map<GridCell, List<CellTower>> cells = levels.get(level);
+            if (cells == null) return;
+            double size = Math.scalb(1.0, level);
+            GridCell cell = new GridCell((long) Math.floor(tower.getX() / size), (long) Math.floor(tower.getY() / size));
+            List<CellTower> bucket = cells.get(cell);
+            if (bucket == null) return;
+            bucket.remove(tower);
+            if (bucket.isEmpty()) {
+                cells.remove(cell);
+                if (cells.isEmpty()) levels.remove(level);
+            }
+        }
+
+        // Offers every tower that may cover the point (x, y) to the selection and returns how
+        // many were offered. The point must be finite; callers fall back to a full scan otherwise.
+        public int collectCandidates(double x, double y, TowerSelection selection) {
+            int offered = unbounded.size();
+            for (CellTower tower : unbounded) {
+                selection.offer(tower);
+            }
+            for (Map.Entry<Integer, Map<GridCell, List<CellTower>>> entry : levels.entrySet()) {
+                double size = Math.scalb(1.0, entry.getKey());
+                double fx = Math.floor(x / size);
+                double fy = Math.floor(y / size);
+                // No tower on this level is placed that far out, so none can reach the point.
+                if (Math.abs(fx) > 2 * MAX_CELL_INDEX || Math.abs(fy) > 2 * MAX_CELL_INDEX) continue;
+                long cx = (long) fx;
+                long cy = (long) fy;
+                Map<GridCell, List<CellTower>> cells = entry.getValue();
+                for (long i = cx - 1; i <= cx + 1; i++) {
+                    for (long j = cy - 1; j <= cy + 1; j++) {
+                        List<CellTower> bucket = cells.get(new GridCell(i, j));
+                        if (bucket == null) continue;
+                        offered += bucket.size();
+                        for (CellTower tower : bucket) {
+                            selection.offer(tower);
+                        }
+                    }
+                }
+            }
+            return offered;
+        }
+
+        // Adds to result every tower in the grid, other than the given one, whose coverage may
+        // overlap the given tower's. Unbounded towers always count as overlapping.
+        public void collectOverlapping(CellTower tower, Collection<CellTower> result) {
+            for (CellTower other : unbounded) {
+                if (other != tower) result.add(other);
+            }
+            boolean bounded = isBounded(tower);
+            double radius = Math.max(0, tower.getCoverageRadius());
+            for (Map.Entry<Integer, Map<GridCell, List<CellTower>>> entry : levels.entrySet()) {
+                double size = Math.scalb(1.0, entry.getKey());
+                Map<GridCell, List<CellTower>> cells = entry.getValue();
+                // Towers on this level reach at most size / 2 beyond their own cell.
+                double minX = Math.floor((tower.getX() - radius - size) / size);
+                double maxX = Math.floor((tower.getX() + radius + size) / size);
+                double minY = Math.floor((tower.getY() - radius - size) / size);
+                double maxY = Math.floor((tower.getY() + radius + size) / size);
+                if (!bounded || (maxX - minX + 1) * (maxY - minY + 1) > cells.size()) {
+                    for (List<CellTower> bucket : cells.values()) {
+                        addOverlapping(tower, bucket, result);
+                    }
+                } else {
+                    for (long i = (long) minX; i <= (long) maxX; i++) {
+                        for (long j = (long) minY; j <= (long) maxY; j++) {
+                            List<CellTower> bucket = cells.get(new GridCell(i, j));
+                            if (bucket != null) addOverlapping(tower, bucket, result);
+                        }
+                    }
+                }
+            }
+        }
+
+        private static void addOverlapping(CellTower tower, List<CellTower> bucket, Collection<CellTower> result) {
+            boolean bounded = isBounded(tower);
+            for (CellTower other : bucket) {
+                if (other != tower && (!bounded || tower.overlaps(other))) result.add(other);
+            }
+        }
+
+        // True if the tower has a finite position and radius that fit on a grid level.
+        public static boolean isBounded(CellTower tower) {
+            return tower.getCoverageRadius() < 0 || levelFor(tower) != Integer.MIN_VALUE;
         }
+
+        // Returns the grid level for the tower, or Integer.MIN_VALUE if it has to stay unbounded.
+        private static int levelFor(CellTower tower) {
+            double radius = tower.getCoverageRadius();
+            double x = tower.getX();
+            double y = tower.getY();
+            if (!Double.isFinite(radius) || !Double.isFinite(x) || !Double.isFinite(y)) {
+                return Integer.MIN_VALUE;
+            }
+            int level = Math.max(MIN_LEVEL, Math.getExponent(radius) + 2);
+            if (level > MAX_LEVEL) return Integer.MIN_VALUE;
+            double size = Math.scalb(1.0, level);
+            if (Math.abs(x / size) > MAX_CELL_INDEX || Math.abs(y / size) > MAX_CELL_INDEX) {
+                return Integer.MIN_VALUE;
+            }
+            return level;
+        }
+    }
+
+    // Running best-tower choice for one client position: the nearest tower in range wins,
+    // then the one with fewer clients, then the lowest tower id.
+    static class TowerSelection {
+        private final double x;
+        private final double y;
+        private CellTower bestTower = null;
+        private double bestDistance = Double.MAX_VALUE;
+        private int bestClientCount = Integer.MAX_VALUE;
+        // All in-range towers at bestDistance, kept only when ties are resolved later.
+        private List<CellTower> nearestTowers;
+
+        public TowerSelection(double x, double y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        public TowerSelection(double x, double y, boolean keepNearestTowers) {
+            this(x, y);
+            if (keepNearestTowers) {
+                this.nearestTowers = new ArrayList<>(1);
+            }
+        }
+
+        public CellTower getBestTower() { return bestTower; }
+        public List<CellTower> getNearestTowers() { return nearestTowers; }
+
+        public void offer(CellTower tower) {
+            double dx = x - tower.getX();
+            double dy = y - tower.getY();
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if (distance > tower.getCoverageRadius()) {
+                return;
+            }
+
+            if (nearestTowers != null) {
+                if (distance < bestDistance) {
+                    nearestTowers.clear();
+                    nearestTowers.add(tower);
+                } else if (distance == bestDistance) {
+                    nearestTowers.add(tower);
+                }
+            }
+
+            if (distance < bestDistance) {
+                bestTower = tower;
+                bestDistance = distance;
+                bestClientCount = tower.getClientCount();
+            } else if (distance == bestDistance) {
+                int currentCount = tower.getClientCount();
+                if (currentCount < bestClientCount) {
+                    bestTower = tower;
+                    bestClientCount = currentCount;
+                    bestDistance = distance;
+                } else if (currentCount == bestClientCount) {
+                    if (bestTower == null) {
+                        bestTower = tower;
+                    } else if (tower.getTowerId().compareTo(bestTower.getTowerId()) < 0) {
+                        bestTower = tower;
+                    }
+                }
+            }
+        }
+
+        // Applies the client-count and tower-id tie-breaks to towers that are equally near,
+        // using the client counts as they are now.
+        public static CellTower pickLeastLoaded(List<CellTower> nearestTowers) {
+            CellTower bestTower = null;
+            int bestClientCount = Integer.MAX_VALUE;
+            for (CellTower tower : nearestTowers) {
+                int currentCount = tower.getClientCount();
+                if (currentCount < bestClientCount) {
+                    bestTower = tower;
+                    bestClientCount = currentCount;
+                } else if (currentCount == bestClientCount) {
+                    if (bestTower == null || tower.getTowerId().compareTo(bestTower.getTowerId()) < 0) {
+                        bestTower = tower;
+                    }
+                }
+            }
+            return bestTower;
+        }
+    }
+
+    // One MOVE_CLIENT request inside a batch.
+    static class ClientMove {
+        private String phoneNumber;
+        private double x;
+        private double y;
+
+        public ClientMove(String phoneNumber, double x, double y) {
+            this.phoneNumber = phoneNumber;
+            this.x = x;
+            this.y = y;
+        }
+
+        public String getPhoneNumber() { return phoneNumber; }
+        public double getX() { return x; }
+        public double getY() { return y; }
+    }
+
+    // Outcome of a REBALANCE pass.
+    static class RebalanceResult {
+        private final int movedClients;
+        private final int peakLoad;
+
+        public RebalanceResult(int movedClients, int peakLoad) {
+            this.movedClients = movedClients;
+            this.peakLoad = peakLoad;
+        }
+
+        public int getMovedClients() { return movedClients; }
+        public int getPeakLoad() { return peakLoad; }
     }
 
     static class Client {
@@ -101,6 +504,7 @@ public class NetworkSimulation {
         }
 
         public void setCurrentTower(CellTower tower) {
+            boolean hadSignal = this.currentTower != null;
             if (this.currentTower != null) {
                 this.currentTower.removeClient(this);
             }
@@ -108,276 +512,1915 @@ public class NetworkSimulation {
             if (tower != null) {
                 tower.addClient(this);
             }
+            if (hadSignal != (tower != null) && operator != null) {
+                operator.signalChanged(this, tower != null);
+            }
         }
     }
 
-    static class Network {
-        private Map<String, CellTower> towers = new HashMap<>();
-        private Map<String, Operator> operators = new HashMap<>();
-        private Map<String, Client> clients = new HashMap<>();
+    // The command-level operations of the simulation, implemented by each storage engine.
+    interface NetworkModel {
+        void addOperator(String name);
+        void addTower(String towerId, double x, double y, double coverageRadius);
+        void registerOperatorTower(String operatorName, String towerId);
+        void removeTower(String towerId);
+        void addClient(String phoneNumber, String operatorName, double x, double y);
+        void removeClient(String phoneNumber);
+        void moveClient(String phoneNumber, double x, double y);
+        void moveClients(List<ClientMove> moves);
+        void changeOperator(String phoneNumber, String operatorName);
+        int towerClientCount(String towerId);
+        int operatorSubscriberCount(String operatorName);
+        // Name of the client's operator, or null if no client has that number.
+        String clientOperatorName(String phoneNumber);
+        // Sets how many clients REBALANCE may leave on the tower; negative means no limit.
+        void setTowerCapacity(String towerId, int capacity);
+        // Moves clients off towers above capacity to other in-range towers of their operator.
+        // One-shot: later commands pick towers by distance again and can overfill a tower.
+        RebalanceResult rebalance();
+        // No-signal client count per current operator, sorted by operator name.
+        SortedMap<String, Integer> noSignalCounts();
+        // Debug check that the incrementally kept counters match a full recount.
+        boolean countsConsistent();
+        // Writes towers, operators, registrations, clients and their current towers to a file.
+        void snapshot(Path path) throws IOException;
+        // Loads a snapshot into this network, which must be empty. Client towers are taken
+        // from the snapshot rather than searched for again.
+        void restore(Path path) throws IOException;
+    }
+
+    // Towers, operators and tower lookup, shared by both client storage engines.
+    abstract static class TowerNetwork implements NetworkModel {
+        // Batches smaller than this are resolved on the calling thread.
+        protected static final int PARALLEL_MOVE_THRESHOLD = 1024;
+        private static final int SNAPSHOT_MAGIC = 0x4E53494D; // "NSIM"
+        private static final int SNAPSHOT_VERSION = 2;
+        private static final int FLAG_CURRENT = 1;
+        private static final int FLAG_REMOVED = 2;
+
+        protected Map<String, CellTower> towers = new HashMap<>();
+        protected Map<String, Operator> operators = new HashMap<>();
+        // Every added tower that has not been removed, used to find overlapping neighbours.
+        // A tower replaced by a later ADD_TOWER with the same id stays here, because operators
+        // that registered it can still hand it out.
+        private TowerGrid towerGrid = new TowerGrid();
+        // Receives the tower lookup and reassignment hooks; Metrics.NONE when not measured.
+        protected final Metrics metrics;
+
+        protected TowerNetwork(Metrics metrics) {
+            this.metrics = metrics;
+        }
 
         public void addTower(CellTower tower) {
+            indexTower(tower);
             towers.put(tower.getTowerId(), tower);
+            linkTower(tower);
         }
 
-        public void removeTower(String towerId) {
-            CellTower tower = towers.remove(towerId);
-            if (tower != null) {
-                for (Operator op : operators.values()) {
-                    op.removeTower(tower);
-                }
-                List<Client> clientsToUpdate = new ArrayList<>(tower.getConnectedClients());
-                for (Client client : clientsToUpdate) {
-                    client.setCurrentTower(null);
-                    CellTower newTower = findBestTowerForClient(client);
-                    client.setCurrentTower(newTower);
+        // Adds the tower to the network grid and links it with the towers it overlaps.
+        private void linkTower(CellTower tower) {
+            // A negative radius covers nothing; NaN covers everything and is kept.
+            if (!(tower.getCoverageRadius() < 0)) {
+                towerGrid.collectOverlapping(tower, tower.getNeighbours());
+                for (CellTower neighbour : tower.getNeighbours()) {
+                    neighbour.getNeighbours().add(tower);
                 }
+                towerGrid.add(tower);
             }
         }
 
+        // Called once for every tower and operator object the network creates, so engines
+        // can number them.
+        protected void indexTower(CellTower tower) {}
+        protected void indexOperator(Operator operator) {}
+
+        @Override
+        public void addTower(String towerId, double x, double y, double coverageRadius) {
+            addTower(new CellTower(towerId, x, y, coverageRadius));
+        }
+
         public void addOperator(Operator operator) {
+            indexOperator(operator);
             operators.put(operator.getName(), operator);
         }
 
+        @Override
+        public void addOperator(String name) {
+            addOperator(new Operator(name));
+        }
+
         public Operator getOperator(String name) {
             return operators.get(name);
         }
 
-        public void addClient(Client client) {
-            clients.put(client.getPhoneNumber(), client);
-            client.getOperator().addClient(client);
-            CellTower bestTower = findBestTowerForClient(client);
-            client.setCurrentTower(bestTower);
+        public CellTower getTower(String towerId) {
+            return towers.get(towerId);
         }
 
-        public void removeClient(String phoneNumber) {
-            Client client = clients.remove(phoneNumber);
-            if (client != null) {
-                client.getOperator().removeClient(client);
-                if (client.getCurrentTower() != null) {
-                    client.getCurrentTower().removeClient(client);
-                }
-            }
+        public Map<String, Operator> getOperators() {
+            return operators;
         }
 
-        public CellTower getTower(String towerId) {
-            return towers.get(towerId);
+        @Override
+        public void registerOperatorTower(String operatorName, String towerId) {
+            Operator operator = operators.get(operatorName);
+            CellTower tower = towers.get(towerId);
+            if (operator != null && tower != null) operator.addTower(tower);
         }
 
-        public Client getClient(String phoneNumber) {
-            return clients.get(phoneNumber);
+        @Override
+        public int towerClientCount(String towerId) {
+            CellTower tower = towers.get(towerId);
+            return tower != null ? tower.getClientCount() : 0;
         }
 
-        public Map<String, Operator> getOperators() {
-            return operators;
+        @Override
+        public int operatorSubscriberCount(String operatorName) {
+            Operator operator = operators.get(operatorName);
+            return operator != null ? operator.getSubscriberCount() : 0;
         }
 
-        public CellTower findBestTowerForClient(Client client) {
-            Operator operator = client.getOperator();
-            if (operator == null) {
-                return null;
+        @Override
+        public SortedMap<String, Integer> noSignalCounts() {
+            SortedMap<String, Integer> counts = new TreeMap<>();
+            for (Operator operator : operators.values()) {
+                counts.put(operator.getName(), operator.getNoSignalCount());
             }
-            Set<CellTower> operatorTowers = operator.getTowers();
-            CellTower bestTower = null;
-            double bestDistance = Double.MAX_VALUE;
-            int bestClientCount = Integer.MAX_VALUE;
+            return counts;
+        }
 
-            for (CellTower tower : operatorTowers) {
-                double dx = client.getX() - tower.getX();
-                double dy = client.getY() - tower.getY();
-                double distance = Math.sqrt(dx * dx + dy * dy);
-                if (distance > tower.getCoverageRadius()) {
-                    continue;
+        // Takes the tower out of the id map and out of the operators that registered it.
+        // Returns null if no tower has that id.
+        protected CellTower detachTower(String towerId) {
+            CellTower tower = towers.remove(towerId);
+            if (tower != null) {
+                for (Operator op : new ArrayList<>(tower.getOperators())) {
+                    // Operators replaced by a later ADD_OPERATOR keep their towers, as before.
+                    if (isCurrent(op)) {
+                        op.removeTower(tower);
+                    }
                 }
+            }
+            return tower;
+        }
 
-                if (distance < bestDistance) {
-                    bestTower = tower;
-                    bestDistance = distance;
-                    bestClientCount = tower.getClientCount();
-                } else if (distance == bestDistance) {
-                    int currentCount = tower.getClientCount();
-                    if (currentCount < bestClientCount) {
-                        bestTower = tower;
-                        bestClientCount = currentCount;
-                        bestDistance = distance;
-                    } else if (currentCount == bestClientCount) {
-                        if (bestTower == null) {
-                            bestTower = tower;
-                        } else if (tower.getTowerId().compareTo(bestTower.getTowerId()) < 0) {
-                            bestTower = tower;
-                        }
+        // Drops a removed tower from the neighbour lists once its clients have been re-homed.
+        protected void unlinkTower(CellTower tower) {
+            tower.markRemoved();
+            towerGrid.remove(tower);
+            for (CellTower neighbour : tower.getNeighbours()) {
+                neighbour.getNeighbours().remove(tower);
+            }
+            tower.getNeighbours().clear();
+        }
+
+        // Snapshot layout, all tables written in order and referenced by position:
+        //   magic, version
+        //   towers:    count, then id, x, y, radius, flags (FLAG_CURRENT, FLAG_REMOVED), capacity
+        //              (version 1 has no capacity)
+        //   operators: count, then name, flags, registered tower count, tower positions
+        //   clients:   count, then phone, operator position, x, y, tower position or -1, flags
+        // "Current" marks the entry that its id or name maps to; the others are towers, operators
+        // and clients replaced by a later ADD command that are still referenced.
+        @Override
+        public void snapshot(Path path) throws IOException {
+            List<CellTower> towerList = new ArrayList<>();
+            List<Operator> operatorList = new ArrayList<>();
+            collectSnapshotEntities(towerList, operatorList);
+            Map<CellTower, Integer> towerPositions = new IdentityHashMap<>();
+            for (CellTower tower : towerList) towerPositions.put(tower, towerPositions.size());
+            Map<Operator, Integer> operatorPositions = new IdentityHashMap<>();
+            for (Operator operator : operatorList) operatorPositions.put(operator, operatorPositions.size());
+
+            try (SnapshotWriter out = SnapshotWriter.create(path)) {
+                out.putInt(SNAPSHOT_MAGIC);
+                out.putInt(SNAPSHOT_VERSION);
+                out.putInt(towerList.size());
+                for (CellTower tower : towerList) {
+                    out.putString(tower.getTowerId());
+                    out.putDouble(tower.getX());
+                    out.putDouble(tower.getY());
+                    out.putDouble(tower.getCoverageRadius());
+                    int flags = towers.get(tower.getTowerId()) == tower ? FLAG_CURRENT : 0;
+                    if (tower.isRemoved()) flags |= FLAG_REMOVED;
+                    out.putByte(flags);
+                    out.putInt(tower.getCapacity());
+                }
+                out.putInt(operatorList.size());
+                for (Operator operator : operatorList) {
+                    out.putString(operator.getName());
+                    out.putByte(isCurrent(operator) ? FLAG_CURRENT : 0);
+                    out.putInt(operator.getTowers().size());
+                    for (CellTower tower : operator.getTowers()) {
+                        out.putInt(towerPositions.get(tower));
                     }
                 }
+                writeClients(out, towerPositions, operatorPositions);
             }
-            return bestTower;
         }
-    }
 
-    public static void main(String[] args) {
-        Network network = new Network();
-        Scanner scanner = new Scanner(System.in);
-        while (scanner.hasNextLine()) {
-            String command = scanner.nextLine().trim();
-            if (command.isEmpty()) {
-                continue;
+        @Override
+        public void restore(Path path) throws IOException {
+            if (!towers.isEmpty() || !operators.isEmpty()) {
+                throw new IllegalStateException("restore needs an empty network");
             }
-            switch (command) {
-                case "MOVE_CLIENT":
-                    moveClient(network, scanner);
-                    break;
-                case "CHANGE_OPERATOR":
-                    changeOperator(network, scanner);
-                    break;
-                case "TOWER_CLIENT_COUNT":
-                    towerClientCount(network, scanner);
-                    break;
-                case "OPERATOR_SUBSCRIBER_COUNT":
-                    operatorSubscriberCount(network, scanner);
-                    break;
-                case "ADD_CLIENT":
-                    addClient(network, scanner);
-                    break;
-                case "REMOVE_CLIENT":
-                    removeClient(network, scanner);
-                    break;
-                case "ADD_TOWER":
-                    addTower(network, scanner);
-                    break;
-                case "REGISTER_OPERATOR_TOWER":
-                    registerOperatorTower(network, scanner);
-                    break;
-                case "REMOVE_TOWER":
-                    removeTower(network, scanner);
-                    break;
-                case "NO_SIGNAL_COUNT":
-                    noSignalCount(network);
-                    break;
-                case "ADD_OPERATOR":
-                    addOperator(network, scanner);
-                    break;
-                default:
-                    break;
+            try (SnapshotReader in = SnapshotReader.open(path)) {
+                if (in.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("not a network snapshot: " + path);
+                }
+                int version = in.getInt();
+                if (version < 1 || version > SNAPSHOT_VERSION) {
+                    throw new IOException("unsupported snapshot version " + version + ": " + path);
+                }
+                CellTower[] towerList = new CellTower[in.getInt()];
+                for (int i = 0; i < towerList.length; i++) {
+                    CellTower tower = new CellTower(in.getString(), in.getDouble(), in.getDouble(), in.getDouble());
+                    int flags = in.getByte();
+                    if (version >= 2) tower.setCapacity(in.getInt());
+                    indexTower(tower);
+                    if ((flags & FLAG_CURRENT) != 0) towers.put(tower.getTowerId(), tower);
+                    if ((flags & FLAG_REMOVED) != 0) {
+                        tower.markRemoved();
+                    } else {
+                        linkTower(tower);
+                    }
+                    towerList[i] = tower;
+                }
+                Operator[] operatorList = new Operator[in.getInt()];
+                for (int i = 0; i < operatorList.length; i++) {
+                    Operator operator = new Operator(in.getString());
+                    int flags = in.getByte();
+                    indexOperator(operator);
+                    if ((flags & FLAG_CURRENT) != 0) operators.put(operator.getName(), operator);
+                    int registered = in.getInt();
+                    for (int j = 0; j < registered; j++) {
+                        operator.addTower(towerList[in.getInt()]);
+                    }
+                    operatorList[i] = operator;
+                }
+                int clientCount = in.getInt();
+                for (int i = 0; i < clientCount; i++) {
+                    String phoneNumber = in.getString();
+                    Operator operator = operatorList[in.getInt()];
+                    double x = in.getDouble();
+                    double y = in.getDouble();
+                    int tower = in.getInt();
+                    boolean current = (in.getByte() & FLAG_CURRENT) != 0;
+                    restoreClient(phoneNumber, operator, x, y, tower < 0 ? null : towerList[tower], current);
+                }
             }
         }
-    }
 
-    private static void moveClient(Network network, Scanner scanner) {
-        String phoneNumber = readNonEmptyLine(scanner);
-        String xStr = readNonEmptyLine(scanner);
-        String yStr = readNonEmptyLine(scanner);
-        if (phoneNumber == null || xStr == null || yStr == null) return;
-        try {
-            double x = Double.parseDouble(xStr);
-            double y = Double.parseDouble(yStr);
-            Client client = network.getClient(phoneNumber);
-            if (client != null) {
-                client.setLocation(x, y);
-                CellTower bestTower = network.findBestTowerForClient(client);
-                client.setCurrentTower(bestTower);
+        // Lists every tower and operator that clients or later commands can still reach.
+        protected abstract void collectSnapshotEntities(List<CellTower> towerList, List<Operator> operatorList);
+
+        // Writes the client table, including the count.
+        protected abstract void writeClients(SnapshotWriter out, Map<CellTower, Integer> towerPositions,
+                                             Map<Operator, Integer> operatorPositions) throws IOException;
+
+        protected abstract void restoreClient(String phoneNumber, Operator operator, double x, double y,
+                                              CellTower tower, boolean current);
+
+        @Override
+        public void setTowerCapacity(String towerId, int capacity) {
+            CellTower tower = towers.get(towerId);
+            if (tower != null) tower.setCapacity(capacity);
+        }
+
+        // A connected client as REBALANCE sees it. The handle identifies the client to the
+        // storage engine; inRange lists every tower that may serve it, nearest first. During
+        // the pass tower is the tower it is on and home the one it started on.
+        protected static class RebalanceClient {
+            final Object handle;
+            final String phoneNumber;
+            final Operator operator;
+            final double x;
+            final double y;
+            CellTower tower;
+            CellTower home;
+            List<CellTower> inRange;
+
+            public RebalanceClient(Object handle, String phoneNumber, Operator operator, double x, double y) {
+                this.handle = handle;
+                this.phoneNumber = phoneNumber;
+                this.operator = operator;
+                this.x = x;
+                this.y = y;
             }
-        } catch (NumberFormatException e) {}
-    }
+        }
 
-    private static void changeOperator(Network network, Scanner scanner) {
-        String phoneNumber = readNonEmptyLine(scanner);
-        String newOperatorName = readNonEmptyLine(scanner);
-        if (phoneNumber == null || newOperatorName == null) return;
-        Client client = network.getClient(phoneNumber);
-        Operator newOperator = network.getOperator(newOperatorName);
-        if (client == null || newOperator == null) return;
-        Operator oldOperator = client.getOperator();
-        oldOperator.removeClient(client);
-        newOperator.addClient(client);
-        client.setOperator(newOperator);
-        CellTower bestTower = network.findBestTowerForClient(client);
-        client.setCurrentTower(bestTower);
-    }
-
-    private static void towerClientCount(Network network, Scanner scanner) {
-        String towerId = readNonEmptyLine(scanner);
-        CellTower tower = network.getTower(towerId);
-        System.out.println(tower != null ? tower.getClientCount() : 0);
-    }
-
-    private static void operatorSubscriberCount(Network network, Scanner scanner) {
-        String operatorName = readNonEmptyLine(scanner);
-        Operator operator = network.getOperator(operatorName);
-        System.out.println(operator != null ? operator.getSubscriberCount() : 0);
-    }
-
-    private static void addClient(Network network, Scanner scanner) {
-        String phoneNumber = readNonEmptyLine(scanner);
-        String operatorName = readNonEmptyLine(scanner);
-        String xStr = readNonEmptyLine(scanner);
-        String yStr = readNonEmptyLine(scanner);
-        if (phoneNumber == null || operatorName == null || xStr == null || yStr == null) return;
-        try {
-            double x = Double.parseDouble(xStr);
-            double y = Double.parseDouble(yStr);
-            Operator operator = network.getOperator(operatorName);
-            if (operator == null) return;
-            Client client = new Client(phoneNumber, operator, x, y);
-            network.addClient(client);
-        } catch (NumberFormatException e) {}
-    }
+        // Adds the clients connected to the tower to the list.
+        protected abstract void collectConnectedClients(CellTower tower, List<RebalanceClient> result);
 
-    private static void removeClient(Network network, Scanner scanner) {
-        String phoneNumber = readNonEmptyLine(scanner);
-        if (phoneNumber != null) network.removeClient(phoneNumber);
-    }
+        // Connects the client to another tower; both towers are non-null.
+        protected abstract void reconnect(RebalanceClient client, CellTower tower);
 
-    private static void addTower(Network network, Scanner scanner) {
-        String towerId = readNonEmptyLine(scanner);
-        String xStr = readNonEmptyLine(scanner);
-        String yStr = readNonEmptyLine(scanner);
-        String radiusStr = readNonEmptyLine(scanner);
-        if (towerId == null || xStr == null || yStr == null || radiusStr == null) return;
-        try {
-            double x = Double.parseDouble(xStr);
-            double y = Double.parseDouble(yStr);
-            double radius = Double.parseDouble(radiusStr);
-            network.addTower(new CellTower(towerId, x, y, radius));
-        } catch (NumberFormatException e) {}
-    }
+        // Min-cost flow rebalance by successive shortest paths, with towers as the nodes. A
+        // client on tower t gives an edge t -> x to every other in-range tower x, costing
+        // cost(x) - cost(t), where a client's cost at a tower is its distance to it, or 0 at
+        // the tower it started on. Moving a client home again is then a negative-cost undo,
+        // and a path can push clients on through full towers. Towers above capacity are taken
+        // in id order. While one has overflow left, Dijkstra on the reduced costs, cost +
+        // potential(from) - potential(to), finds the cheapest path from it to a tower below
+        // capacity, and one client moves along every edge of the path. Reduced costs stay
+        // non-negative on every edge of the network, so the pass ends with the least overflow
+        // possible, and no other assignment that takes the same number of clients off each
+        // tower and onto each tower moves clients a shorter total distance. Which of several
+        // towers competing for the same spare room keeps its overflow follows id order, not
+        // distance.
+        // A search raises every potential by min(distance, target distance). RebalanceNode
+        // keeps what the towers settled in the search add on top of a shared offset, so a
+        // search only touches the towers it settles. Edges are built when a tower is first
+        // settled, so only the neighbourhood of overloaded towers is ever looked at.
+        @Override
+        public RebalanceResult rebalance() {
+            List<CellTower> current = new ArrayList<>(towers.values());
+            current.sort(Comparator.comparing(CellTower::getTowerId));
+            RebalancePass pass = new RebalancePass();
+            for (CellTower source : current) {
+                // A tower that finds no path never gets one later in the pass, as moving
+                // clients elsewhere cannot open up a path from it.
+                while (source.getClientCount() > source.getCapacity()) {
+                    RebalanceNode target = pass.findShortestPath(pass.node(source));
+                    if (target == null) break;
+                    pass.augment(target);
+                }
+            }
 
-    private static void registerOperatorTower(Network network, Scanner scanner) {
-        String operatorName = readNonEmptyLine(scanner);
-        String towerId = readNonEmptyLine(scanner);
-        if (operatorName == null || towerId == null) return;
-        Operator operator = network.getOperator(operatorName);
-        CellTower tower = network.getTower(towerId);
-        if (operator != null && tower != null) operator.addTower(tower);
-    }
+            int movedClients = 0;
+            for (RebalanceClient client : pass.touched) {
+                if (client.tower != client.home) movedClients++;
+            }
+            int peakLoad = 0;
+            for (CellTower tower : current) {
+                peakLoad = Math.max(peakLoad, tower.getClientCount());
+            }
+            return new RebalanceResult(movedClients, peakLoad);
+        }
 
-    private static void removeTower(Network network, Scanner scanner) {
-        String towerId = readNonEmptyLine(scanner);
-        if (towerId != null) network.removeTower(towerId);
-    }
+        // A tower in the flow network of one REBALANCE pass.
+        private static class RebalanceNode {
+            final CellTower tower;
+            final int order;
+            // Edges to other towers, in order of first appearance and by target. Null until
+            // the tower is first settled.
+            List<RebalanceEdge> out;
+            Map<CellTower, RebalanceEdge> outByTarget;
+            // Potential minus RebalancePass.potentialOffset.
+            double potential;
+            // Distance, parent and the client moved from the parent, valid while round is the
+            // current search.
+            double distance;
+            int round = -1;
+            boolean settled;
+            RebalanceNode parent;
+            RebalanceClient client;
 
-    private static void noSignalCount(Network network) {
-        Map<String, Integer> counts = new TreeMap<>();
-        for (Operator operator : network.getOperators().values()) {
-            int count = 0;
-            for (Client client : operator.getClients()) {
-                if (client.getCurrentTower() == null) count++;
+            RebalanceNode(CellTower tower, int order) {
+                this.tower = tower;
+                this.order = order;
+            }
+        }
+
+        // The clients that could move along an edge, cheapest first.
+        private static class RebalanceEdge {
+            final RebalanceNode target;
+            final PriorityQueue<RebalanceMove> moves = new PriorityQueue<>();
+
+            RebalanceEdge(RebalanceNode target) {
+                this.target = target;
             }
-            counts.put(operator.getName(), count);
         }
-        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
-            System.out.println(entry.getKey() + ": " + entry.getValue() + " phones without signal.");
+
+        // A client on the edge's tower that could move to the edge's target.
+        private static class RebalanceMove implements Comparable<RebalanceMove> {
+            final RebalanceClient client;
+            final double cost;
+            final long order;
+
+            RebalanceMove(RebalanceClient client, double cost, long order) {
+                this.client = client;
+                this.cost = cost;
+                this.order = order;
+            }
+
+            @Override
+            public int compareTo(RebalanceMove other) {
+                int byCost = Double.compare(cost, other.cost);
+                return byCost != 0 ? byCost : Long.compare(order, other.order);
+            }
         }
-    }
 
-    private static void addOperator(Network network, Scanner scanner) {
-        String operatorName = readNonEmptyLine(scanner);
-        if (operatorName != null) network.addOperator(new Operator(operatorName));
-    }
+        // A Dijkstra queue entry; stale once the node's distance has changed.
+        private static class RebalanceLabel implements Comparable<RebalanceLabel> {
+            final RebalanceNode node;
+            final double distance;
+
+            RebalanceLabel(RebalanceNode node, double distance) {
+                this.node = node;
+                this.distance = distance;
+            }
 
-    private static String readNonEmptyLine(Scanner scanner) {
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine().trim();
-            if (!line.isEmpty()) return line;
+            @Override
+            public int compareTo(RebalanceLabel other) {
+                int byDistance = Double.compare(distance, other.distance);
+                return byDistance != 0 ? byDistance : Integer.compare(node.order, other.node.order);
+            }
         }
-        return null;
+
+        private class RebalancePass {
+            final Map<CellTower, RebalanceNode> nodes = new IdentityHashMap<>();
+            // Every client seen so far, to count the moved ones at the end.
+            final List<RebalanceClient> touched = new ArrayList<>();
+            final List<RebalanceNode> settled = new ArrayList<>();
+            final PriorityQueue<RebalanceLabel> queue = new PriorityQueue<>();
+            double potentialOffset;
+            int round;
+            long moveOrder;
+
+            RebalanceNode node(CellTower tower) {
+                return nodes.computeIfAbsent(tower, key -> new RebalanceNode(key, nodes.size()));
+            }
+
+            // Dijkstra from the source to the nearest tower below capacity. Returns that tower,
+            // with the path in its parent links, or null if none can be reached.
+            RebalanceNode findShortestPath(RebalanceNode source) {
+                round++;
+                queue.clear();
+                settled.clear();
+                relax(source, 0, null, null);
+                RebalanceNode target = null;
+                while (!queue.isEmpty()) {
+                    RebalanceLabel label = queue.poll();
+                    RebalanceNode node = label.node;
+                    if (node.settled || label.distance != node.distance) continue;
+                    node.settled = true;
+                    settled.add(node);
+                    CellTower tower = node.tower;
+                    if (tower.getClientCount() < tower.getCapacity()) {
+                        target = node;
+                        break;
+                    }
+                    double potential = node.potential + potentialOffset;
+                    for (RebalanceEdge edge : outgoing(node)) {
+                        RebalanceMove move = firstMovable(tower, edge.moves);
+                        if (move == null) continue;
+                        RebalanceNode next = edge.target;
+                        if (next.round == round && next.settled) continue;
+                        // Rounding can leave a reduced cost a little below zero.
+                        double reduced = move.cost + potential - (next.potential + potentialOffset);
+                        relax(next, node.distance + Math.max(0, reduced), node, move.client);
+                    }
+                }
+                if (target == null) return null;
+                for (RebalanceNode node : settled) {
+                    node.potential += node.distance - target.distance;
+                }
+                potentialOffset += target.distance;
+                return target;
+            }
+
+            private void relax(RebalanceNode node, double distance, RebalanceNode parent, RebalanceClient client) {
+                if (node.round == round && !(distance < node.distance)) return;
+                node.round = round;
+                node.settled = false;
+                node.distance = distance;
+                node.parent = parent;
+                node.client = client;
+                queue.add(new RebalanceLabel(node, distance));
+            }
+
+            // Moves one client along every edge of the path found by findShortestPath.
+            void augment(RebalanceNode target) {
+                // The search stops before building the target's edges. They are built now, so
+                // the clients already there are taken as starting on it and the moved ones are not.
+                outgoing(target);
+                for (RebalanceNode node = target; node.parent != null; node = node.parent) {
+                    RebalanceClient client = node.client;
+                    reconnect(client, node.tower);
+                    client.tower = node.tower;
+                    if (node.out != null) addMoves(client, node);
+                }
+            }
+
+            // Edges out of the tower. Clients are taken in phone number order and their
+            // in-range towers nearest first, so the result does not depend on the storage
+            // engine or hash order.
+            private List<RebalanceEdge> outgoing(RebalanceNode node) {
+                if (node.out != null) return node.out;
+                node.out = new ArrayList<>();
+                node.outByTarget = new IdentityHashMap<>();
+                List<RebalanceClient> connected = new ArrayList<>(node.tower.getClientCount());
+                collectConnectedClients(node.tower, connected);
+                connected.sort(Comparator.comparing((RebalanceClient client) -> client.phoneNumber)
+                        .thenComparingDouble(client -> client.x)
+                        .thenComparingDouble(client -> client.y));
+                for (RebalanceClient client : connected) {
+                    client.tower = node.tower;
+                    client.home = node.tower;
+                    client.inRange = findTowersInRange(client.operator, client.x, client.y);
+                    touched.add(client);
+                    addMoves(client, node);
+                }
+                return node.out;
+            }
+
+            // Clients whose distance to a tower is not finite are never moved to it.
+            private void addMoves(RebalanceClient client, RebalanceNode from) {
+                double base = cost(client, client.tower);
+                for (CellTower target : client.inRange) {
+                    if (target == client.tower) continue;
+                    double cost = cost(client, target) - base;
+                    if (!Double.isFinite(cost)) continue;
+                    RebalanceEdge edge = from.outByTarget.get(target);
+                    if (edge == null) {
+                        edge = new RebalanceEdge(node(target));
+                        from.outByTarget.put(target, edge);
+                        from.out.add(edge);
+                    }
+                    edge.moves.add(new RebalanceMove(client, cost, moveOrder++));
+                }
+            }
+        }
+
+        private static double cost(RebalanceClient client, CellTower tower) {
+            return tower == client.home ? 0 : Math.hypot(client.x - tower.getX(), client.y - tower.getY());
+        }
+
+        // The cheapest move in the queue whose client is still on the tower. Clients that have
+        // moved on since they were queued are dropped here rather than searched for on every move.
+        private static RebalanceMove firstMovable(CellTower tower, PriorityQueue<RebalanceMove> queue) {
+            while (!queue.isEmpty() && queue.peek().client.tower != tower) {
+                queue.poll();
+            }
+            return queue.peek();
+        }
+
+        // Every tower of the operator that covers (x, y), nearest first, then by tower id.
+        // Removed towers are left out.
+        protected List<CellTower> findTowersInRange(Operator operator, double x, double y) {
+            List<CellTower> inRange = new ArrayList<>();
+            if (operator == null) return inRange;
+            collectCandidates(operator, x, y, new TowerSelection(x, y) {
+                @Override
+                public void offer(CellTower tower) {
+                    double dx = x - tower.getX();
+                    double dy = y - tower.getY();
+                    if (!(Math.sqrt(dx * dx + dy * dy) > tower.getCoverageRadius()) && !tower.isRemoved()) {
+                        inRange.add(tower);
+                    }
+                }
+            });
+            inRange.sort(Comparator.comparingDouble((CellTower tower) -> Math.hypot(x - tower.getX(), y - tower.getY()))
+                    .thenComparing(CellTower::getTowerId));
+            return inRange;
+        }
+
+        protected boolean isCurrent(Operator operator) {
+            return operators.get(operator.getName()) == operator;
+        }
+
+        public CellTower findBestTower(Operator operator, double x, double y) {
+            if (operator == null) {
+                return null;
+            }
+            TowerSelection selection = new TowerSelection(x, y);
+            collectCandidates(operator, x, y, selection);
+            return selection.getBestTower();
+        }
+
+        // Re-homes a client that was connected to the removed tower. The client is inside the
+        // removed tower's coverage, so any tower that can serve it overlaps the removed one and
+        // only the neighbour list needs checking.
+        protected CellTower findBestTowerAfterRemoval(Operator operator, double x, double y, CellTower removed) {
+            if (operator == null || !isCurrent(operator) || !TowerGrid.isBounded(removed)) {
+                return findBestTower(operator, x, y);
+            }
+            TowerSelection selection = new TowerSelection(x, y);
+            for (CellTower neighbour : removed.getNeighbours()) {
+                if (neighbour.getOperators().contains(operator)) {
+                    selection.offer(neighbour);
+                }
+            }
+            metrics.recordTowerLookup(removed.getNeighbours().size());
+            return selection.getBestTower();
+        }
+
+        // The in-range towers of the operator at the smallest distance from (x, y), for the
+        // parallel phase of moveClients. Safe to call concurrently while nothing is modified.
+        protected List<CellTower> findNearestTowers(Operator operator, double x, double y) {
+            TowerSelection selection = new TowerSelection(x, y, true);
+            collectCandidates(operator, x, y, selection);
+            return selection.getNearestTowers();
+        }
+
+        // Commit-phase choice among the towers found by findNearestTowers.
+        protected static CellTower pickNearestTower(List<CellTower> nearest) {
+            if (nearest == null || nearest.isEmpty()) return null;
+            return nearest.size() == 1 ? nearest.get(0) : TowerSelection.pickLeastLoaded(nearest);
+        }
+
+        // Client.setCurrentTower, counting a reassignment when the client leaves its tower for
+        // another one or for no signal.
+        protected void connect(Client client, CellTower tower) {
+            CellTower oldTower = client.getCurrentTower();
+            if (oldTower != null && oldTower != tower) metrics.recordReassignment();
+            client.setCurrentTower(tower);
+        }
+
+        private void collectCandidates(Operator operator, double x, double y, TowerSelection selection) {
+            int offered;
+            if (Double.isFinite(x) && Double.isFinite(y)) {
+                offered = operator.getTowerGrid().collectCandidates(x, y, selection);
+            } else {
+                offered = operator.getTowers().size();
+                for (CellTower tower : operator.getTowers()) {
+                    selection.offer(tower);
+                }
+            }
+            metrics.recordTowerLookup(offered);
+        }
+    }
+
+    // Storage engine with one Client object per subscriber.
+    static class Network extends TowerNetwork {
+        private Map<String, Client> clients = new HashMap<>();
+
+        public Network() {
+            this(Metrics.NONE);
+        }
+
+        public Network(Metrics metrics) {
+            super(metrics);
+        }
+
+        @Override
+        public void removeTower(String towerId) {
+            CellTower tower = detachTower(towerId);
+            if (tower != null) {
+                List<Client> clientsToUpdate = new ArrayList<>(tower.getConnectedClients());
+                for (Client client : clientsToUpdate) {
+                    connect(client, null);
+                    CellTower newTower = findBestTowerAfterRemoval(client.getOperator(), client.getX(), client.getY(), tower);
+                    connect(client, newTower);
+                }
+                unlinkTower(tower);
+            }
+        }
+
+        public void addClient(Client client) {
+            clients.put(client.getPhoneNumber(), client);
+            client.getOperator().addClient(client);
+            CellTower bestTower = findBestTowerForClient(client);
+            connect(client, bestTower);
+        }
+
+        @Override
+        public void addClient(String phoneNumber, String operatorName, double x, double y) {
+            Operator operator = getOperator(operatorName);
+            if (operator == null) return;
+            addClient(new Client(phoneNumber, operator, x, y));
+        }
+
+        @Override
+        public void removeClient(String phoneNumber) {
+            Client client = clients.remove(phoneNumber);
+            if (client != null) {
+                client.getOperator().removeClient(client);
+                if (client.getCurrentTower() != null) {
+                    client.getCurrentTower().removeClient(client);
+                }
+            }
+        }
+
+        @Override
+        public void moveClient(String phoneNumber, double x, double y) {
+            Client client = clients.get(phoneNumber);
+            if (client != null) {
+                client.setLocation(x, y);
+                CellTower bestTower = findBestTowerForClient(client);
+                connect(client, bestTower);
+            }
+        }
+
+        @Override
+        public void changeOperator(String phoneNumber, String operatorName) {
+            Client client = clients.get(phoneNumber);
+            Operator newOperator = getOperator(operatorName);
+            if (client == null || newOperator == null) return;
+            Operator oldOperator = client.getOperator();
+            oldOperator.removeClient(client);
+            newOperator.addClient(client);
+            client.setOperator(newOperator);
+            CellTower bestTower = findBestTowerForClient(client);
+            connect(client, bestTower);
+        }
+
+        public Client getClient(String phoneNumber) {
+            return clients.get(phoneNumber);
+        }
+
+        @Override
+        public String clientOperatorName(String phoneNumber) {
+            Client client = clients.get(phoneNumber);
+            return client != null ? client.getOperator().getName() : null;
+        }
+
+        // Clients still registered with a reachable operator or tower, filled in by
+        // collectSnapshotEntities for writeClients.
+        private List<Client> snapshotClients;
+
+        @Override
+        protected void collectSnapshotEntities(List<CellTower> towerList, List<Operator> operatorList) {
+            Set<CellTower> towerSet = new LinkedHashSet<>(towers.values());
+            Set<Operator> operatorSet = new LinkedHashSet<>(operators.values());
+            Set<Client> clientSet = new LinkedHashSet<>(clients.values());
+            int size;
+            do {
+                size = towerSet.size() + operatorSet.size() + clientSet.size();
+                for (Operator operator : new ArrayList<>(operatorSet)) {
+                    towerSet.addAll(operator.getTowers());
+                    clientSet.addAll(operator.getClients());
+                }
+                for (CellTower tower : new ArrayList<>(towerSet)) {
+                    clientSet.addAll(tower.getConnectedClients());
+                }
+                for (Client client : new ArrayList<>(clientSet)) {
+                    operatorSet.add(client.getOperator());
+                    if (client.getCurrentTower() != null) towerSet.add(client.getCurrentTower());
+                }
+            } while (size != towerSet.size() + operatorSet.size() + clientSet.size());
+            // A removed client keeps its operator reference but is no longer a subscriber.
+            clientSet.removeIf(client -> !client.getOperator().getClients().contains(client));
+            towerList.addAll(towerSet);
+            operatorList.addAll(operatorSet);
+            snapshotClients = new ArrayList<>(clientSet);
+        }
+
+        @Override
+        protected void writeClients(SnapshotWriter out, Map<CellTower, Integer> towerPositions,
+                                    Map<Operator, Integer> operatorPositions) throws IOException {
+            out.putInt(snapshotClients.size());
+            for (Client client : snapshotClients) {
+                out.putString(client.getPhoneNumber());
+                out.putInt(operatorPositions.get(client.getOperator()));
+                out.putDouble(client.getX());
+                out.putDouble(client.getY());
+                out.putInt(client.getCurrentTower() != null ? towerPositions.get(client.getCurrentTower()) : -1);
+                out.putByte(clients.get(client.getPhoneNumber()) == client ? 1 : 0);
+            }
+            snapshotClients = null;
+        }
+
+        @Override
+        protected void restoreClient(String phoneNumber, Operator operator, double x, double y,
+                                     CellTower tower, boolean current) {
+            Client client = new Client(phoneNumber, operator, x, y);
+            operator.addClient(client);
+            connect(client, tower);
+            if (current) clients.put(phoneNumber, client);
+        }
+
+        @Override
+        protected void collectConnectedClients(CellTower tower, List<RebalanceClient> result) {
+            for (Client client : tower.getConnectedClients()) {
+                result.add(new RebalanceClient(client, client.getPhoneNumber(), client.getOperator(), client.getX(), client.getY()));
+            }
+        }
+
+        @Override
+        protected void reconnect(RebalanceClient client, CellTower tower) {
+            connect((Client) client.handle, tower);
+        }
+
+        @Override
+        public boolean countsConsistent() {
+            for (Operator operator : operators.values()) {
+                if (operator.getNoSignalCount() != operator.countNoSignalClients()) return false;
+                if (operator.getSubscriberCount() != operator.getClients().size()) return false;
+            }
+            return true;
+        }
+
+        public CellTower findBestTowerForClient(Client client) {
+            return findBestTower(client.getOperator(), client.getX(), client.getY());
+        }
+
+        // Moves clients in the order given, with the same outcome as calling moveClient for each.
+        // The nearest towers for every move are looked up in parallel; only the client-count
+        // tie-break depends on earlier moves, so it is applied in a sequential commit phase.
+        @Override
+        public void moveClients(List<ClientMove> moves) {
+            int n = moves.size();
+            Client[] movedClients = new Client[n];
+            List<?>[] nearest = new List<?>[n];
+            IntStream indices = IntStream.range(0, n);
+            if (n >= PARALLEL_MOVE_THRESHOLD) {
+                indices = indices.parallel();
+            }
+            indices.forEach(i -> {
+                ClientMove move = moves.get(i);
+                Client client = clients.get(move.getPhoneNumber());
+                movedClients[i] = client;
+                if (client != null && client.getOperator() != null) {
+                    nearest[i] = findNearestTowers(client.getOperator(), move.getX(), move.getY());
+                }
+            });
+
+            for (int i = 0; i < n; i++) {
+                Client client = movedClients[i];
+                if (client == null) continue;
+                ClientMove move = moves.get(i);
+                client.setLocation(move.getX(), move.getY());
+                @SuppressWarnings("unchecked")
+                List<CellTower> candidates = (List<CellTower>) nearest[i];
+                connect(client, pickNearestTower(candidates));
+            }
+        }
+    }
+
+    // Interns phone numbers as dense int ids. The characters of all numbers share one array,
+    // and lookups go through an open-addressing table of ids, so no String is kept per number.
+    static class PhoneTable {
+        private char[] chars = new char[1 << 12];
+        // Number id spans chars[ends[id - 1], ends[id]), with ends[-1] taken as 0.
+        private int[] ends = new int[1 << 8];
+        private int size;
+        // Open-addressing slots holding id + 1, or 0 when empty.
+        private int[] slots = new int[1 << 9];
+
+        public int size() { return size; }
+
+        // Returns the id of the phone number, or -1 if it was never interned.
+        public int find(String phoneNumber) {
+            int mask = slots.length - 1;
+            for (int i = mix(phoneNumber.hashCode()) & mask; ; i = (i + 1) & mask) {
+                int id = slots[i] - 1;
+                if (id < 0) return -1;
+                if (matches(id, phoneNumber)) return id;
+            }
+        }
+
+        public int intern(String phoneNumber) {
+            int id = find(phoneNumber);
+            if (id >= 0) return id;
+            if ((size + 1) * 2 > slots.length) rehash(slots.length * 2);
+            int length = phoneNumber.length();
+            int start = size == 0 ? 0 : ends[size - 1];
+            if (start + length > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, start + length));
+            }
+            phoneNumber.getChars(0, length, chars, start);
+            if (size == ends.length) ends = Arrays.copyOf(ends, size * 2);
+            id = size++;
+            ends[id] = start + length;
+            insertSlot(id, phoneNumber.hashCode());
+            return id;
+        }
+
+        public String get(int id) {
+            int start = id == 0 ? 0 : ends[id - 1];
+            return new String(chars, start, ends[id] - start);
+        }
+
+        private boolean matches(int id, String phoneNumber) {
+            int start = id == 0 ? 0 : ends[id - 1];
+            int length = ends[id] - start;
+            if (length != phoneNumber.length()) return false;
+            for (int i = 0; i < length; i++) {
+                if (chars[start + i] != phoneNumber.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private void rehash(int capacity) {
+            slots = new int[capacity];
+            for (int id = 0; id < size; id++) {
+                int start = id == 0 ? 0 : ends[id - 1];
+                int hash = 0;
+                for (int i = start; i < ends[id]; i++) {
+                    hash = 31 * hash + chars[i];
+                }
+                insertSlot(id, hash);
+            }
+        }
+
+        private void insertSlot(int id, int hash) {
+            int mask = slots.length - 1;
+            int i = mix(hash) & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    // Passes every call through to a network, recording the state-changing ones in a journal.
+    static class JournalingNetwork implements NetworkModel {
+        private final NetworkModel network;
+        private final CommandJournal journal;
+
+        public JournalingNetwork(NetworkModel network, CommandJournal journal) {
+            this.network = network;
+            this.journal = journal;
+        }
+
+        @Override
+        public void addOperator(String name) {
+            try {
+                journal.beginRecord(Command.ADD_OPERATOR).putString(name);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.addOperator(name);
+        }
+
+        @Override
+        public void addTower(String towerId, double x, double y, double coverageRadius) {
+            try {
+                SnapshotWriter out = journal.beginRecord(Command.ADD_TOWER);
+                out.putString(towerId);
+                out.putDouble(x);
+                out.putDouble(y);
+                out.putDouble(coverageRadius);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.addTower(towerId, x, y, coverageRadius);
+        }
+
+        @Override
+        public void registerOperatorTower(String operatorName, String towerId) {
+            try {
+                SnapshotWriter out = journal.beginRecord(Command.REGISTER_OPERATOR_TOWER);
+                out.putString(operatorName);
+                out.putString(towerId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.registerOperatorTower(operatorName, towerId);
+        }
+
+        @Override
+        public void removeTower(String towerId) {
+            try {
+                journal.beginRecord(Command.REMOVE_TOWER).putString(towerId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.removeTower(towerId);
+        }
+
+        @Override
+        public void addClient(String phoneNumber, String operatorName, double x, double y) {
+            try {
+                SnapshotWriter out = journal.beginRecord(Command.ADD_CLIENT);
+                out.putString(phoneNumber);
+                out.putString(operatorName);
+                out.putDouble(x);
+                out.putDouble(y);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.addClient(phoneNumber, operatorName, x, y);
+        }
+
+        @Override
+        public void removeClient(String phoneNumber) {
+            try {
+                journal.beginRecord(Command.REMOVE_CLIENT).putString(phoneNumber);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.removeClient(phoneNumber);
+        }
+
+        @Override
+        public void moveClient(String phoneNumber, double x, double y) {
+            try {
+                SnapshotWriter out = journal.beginRecord(Command.MOVE_CLIENT);
+                out.putString(phoneNumber);
+                out.putDouble(x);
+                out.putDouble(y);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.moveClient(phoneNumber, x, y);
+        }
+
+        @Override
+        public void moveClients(List<ClientMove> moves) {
+            try {
+                SnapshotWriter out = journal.beginRecord(Command.MOVE_BATCH);
+                out.putInt(moves.size());
+                for (ClientMove move : moves) {
+                    out.putString(move.getPhoneNumber());
+                    out.putDouble(move.getX());
+                    out.putDouble(move.getY());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.moveClients(moves);
+        }
+
+        @Override
+        public void changeOperator(String phoneNumber, String operatorName) {
+            try {
+                SnapshotWriter out = journal.beginRecord(Command.CHANGE_OPERATOR);
+                out.putString(phoneNumber);
+                out.putString(operatorName);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.changeOperator(phoneNumber, operatorName);
+        }
+
+        @Override
+        public void setTowerCapacity(String towerId, int capacity) {
+            try {
+                SnapshotWriter out = journal.beginRecord(Command.SET_TOWER_CAPACITY);
+                out.putString(towerId);
+                out.putInt(capacity);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            network.setTowerCapacity(towerId, capacity);
+        }
+
+        @Override
+        public RebalanceResult rebalance() {
+            journal.beginRecord(Command.REBALANCE);
+            return network.rebalance();
+        }
+
+        @Override
+        public int towerClientCount(String towerId) {
+            return network.towerClientCount(towerId);
+        }
+
+        @Override
+        public int operatorSubscriberCount(String operatorName) {
+            return network.operatorSubscriberCount(operatorName);
+        }
+
+        @Override
+        public String clientOperatorName(String phoneNumber) {
+            return network.clientOperatorName(phoneNumber);
+        }
+
+        @Override
+        public SortedMap<String, Integer> noSignalCounts() {
+            return network.noSignalCounts();
+        }
+
+        @Override
+        public boolean countsConsistent() {
+            return network.countsConsistent();
+        }
+
+        @Override
+        public void snapshot(Path path) throws IOException {
+            network.snapshot(path);
+        }
+
+        // Not recorded: main wraps the restored network in a new JournalingNetwork and
+        // checkpoints it, so replay never has to go back before a RESTORE.
+        @Override
+        public void restore(Path path) throws IOException {
+            network.restore(path);
+        }
+    }
+
+    enum Command {
+        MOVE_CLIENT, MOVE_BATCH, CHANGE_OPERATOR, TOWER_CLIENT_COUNT, OPERATOR_SUBSCRIBER_COUNT,
+        ADD_CLIENT, REMOVE_CLIENT, ADD_TOWER, REGISTER_OPERATOR_TOWER, REMOVE_TOWER,
+        NO_SIGNAL_COUNT, ADD_OPERATOR, SNAPSHOT, RESTORE, SET_TOWER_CAPACITY, REBALANCE,
+        HANDOFF_CLIENT, STATS;
+
+        static final Command[] ALL = values();
+        private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+
+        // Returns the command on the reader's current line, or null if the line is not a command.
+        public static Command match(CommandReader reader) {
+            for (Command command : ALL) {
+                if (reader.lineIs(command.bytes)) return command;
+            }
+            return null;
+        }
+    }
+
+    // Streaming line reader used instead of Scanner for large replay files.
+    // Lines are split like Scanner.nextLine() and trimmed like String.trim(), but the current
+    // line stays in a reused byte buffer, so commands and numbers are read without Strings.
+    // Input from a file is memory-mapped in windows; standard input is read in blocks.
+    static class CommandReader implements Closeable {
+        private static final int BUFFER_SIZE = 1 << 16;
+        private static final long MAP_WINDOW = 1L << 30;
+        private static final int MAX_FAST_DIGITS = 15;
+        private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        private final InputStream in;
+        private final FileChannel channel;
+        private final Charset charset = Charset.defaultCharset();
+        private final boolean utf8 = charset.equals(StandardCharsets.UTF_8);
+        private final boolean latin1 = charset.equals(StandardCharsets.ISO_8859_1);
+        private ByteBuffer buffer;
+        private long mappedPosition;
+        private boolean skipLineFeed;
+        private boolean endOfInput;
+        private boolean exhausted;
+        private boolean numberError;
+        private byte[] line = new byte[256];
+        private int lineStart;
+        private int lineEnd;
+
+        public CommandReader(InputStream in) {
+            this.in = in;
+            this.channel = null;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.buffer.limit(0);
+        }
+
+        private CommandReader(FileChannel channel) {
+            this.in = null;
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(0);
+        }
+
+        public static CommandReader open(Path path) throws IOException {
+            return new CommandReader(FileChannel.open(path, StandardOpenOption.READ));
+        }
+
+        // True once a read asked for a line past the end of input.
+        public boolean isExhausted() { return exhausted; }
+        public boolean hasNumberError() { return numberError; }
+        public void clearNumberError() { numberError = false; }
+
+        // Advances to the next line that is not blank after trimming.
+        public boolean nextNonEmptyLine() {
+            while (readLine()) {
+                if (lineEnd > lineStart) return true;
+            }
+            exhausted = true;
+            return false;
+        }
+
+        public boolean lineIs(byte[] text) {
+            if (lineEnd - lineStart != text.length) return false;
+            for (int i = 0; i < text.length; i++) {
+                if (line[lineStart + i] != text[i]) return false;
+            }
+            return true;
+        }
+
+        public String lineAsString() {
+            return new String(line, lineStart, lineEnd - lineStart, charset);
+        }
+
+        // The trimmed line as raw bytes, for passing it on unchanged.
+        public byte[] lineBytes() {
+            return Arrays.copyOfRange(line, lineStart, lineEnd);
+        }
+
+        // Reads the next non-empty line as a double. Returns NaN and sets the number error flag
+        // if it is not a number, or sets the exhausted flag if there is no line left.
+        public double nextDouble() {
+            if (!nextNonEmptyLine()) return Double.NaN;
+            try {
+                return lineAsDouble();
+            } catch (NumberFormatException e) {
+                numberError = true;
+                return Double.NaN;
+            }
+        }
+
+        // Same as nextDouble(), for Integer.parseInt values.
+        public int nextInt() {
+            if (!nextNonEmptyLine()) return 0;
+            try {
+                return lineAsInt();
+            } catch (NumberFormatException e) {
+                numberError = true;
+                return 0;
+            }
+        }
+
+        // Parses the current line like Double.parseDouble. Plain decimals with at most 15
+        // significant digits are exact as one division by a power of ten; anything else
+        // (exponents, NaN, long fractions) goes through Double.parseDouble.
+        public double lineAsDouble() {
+            int i = lineStart;
+            boolean negative = false;
+            if (i < lineEnd && (line[i] == '-' || line[i] == '+')) {
+                negative = line[i] == '-';
+                i++;
+            }
+            long mantissa = 0;
+            int significantDigits = 0;
+            int fractionDigits = 0;
+            boolean seenDigit = false;
+            boolean seenPoint = false;
+            for (; i < lineEnd; i++) {
+                byte b = line[i];
+                if (b >= '0' && b <= '9') {
+                    seenDigit = true;
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0 && ++significantDigits > MAX_FAST_DIGITS) break;
+                    if (seenPoint) fractionDigits++;
+                } else if (b == '.' && !seenPoint) {
+                    seenPoint = true;
+                } else {
+                    break;
+                }
+            }
+            if (i < lineEnd || !seenDigit || fractionDigits >= POWERS_OF_TEN.length) {
+                return Double.parseDouble(lineAsString());
+            }
+            double value = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+
+        public int lineAsInt() {
+            int i = lineStart;
+            boolean negative = false;
+            if (i < lineEnd && (line[i] == '-' || line[i] == '+')) {
+                negative = line[i] == '-';
+                i++;
+            }
+            if (i == lineEnd || lineEnd - i > 9) {
+                return Integer.parseInt(lineAsString());
+            }
+            int value = 0;
+            for (; i < lineEnd; i++) {
+                byte b = line[i];
+                if (b < '0' || b > '9') return Integer.parseInt(lineAsString());
+                value = value * 10 + (b - '0');
+            }
+            return negative ? -value : value;
+        }
+
+        // Reads the next raw line into the line buffer and trims it. Returns false at end of input.
+        private boolean readLine() {
+            if (endOfInput) return false;
+            int length = 0;
+            boolean started = false;
+            while (true) {
+                if (!buffer.hasRemaining() && !fill()) {
+                    endOfInput = true;
+                    if (!started) return false;
+                    break;
+                }
+                byte b = buffer.get();
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (b == '\n') continue;
+                }
+                started = true;
+                if (b == '\n') break;
+                if (b == '\r') {
+                    skipLineFeed = true;
+                    break;
+                }
+                if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                line[length++] = b;
+                // Scanner also ends lines at U+0085, U+2028 and U+2029.
+                if (latin1 && b == (byte) 0x85) {
+                    length--;
+                    break;
+                }
+                if (utf8 && b < 0) {
+                    if (b == (byte) 0x85 && length >= 2 && line[length - 2] == (byte) 0xC2) {
+                        length -= 2;
+                        break;
+                    }
+                    if ((b == (byte) 0xA8 || b == (byte) 0xA9) && length >= 3
+                            && line[length - 2] == (byte) 0x80 && line[length - 3] == (byte) 0xE2) {
+                        length -= 3;
+                        break;
+                    }
+                }
+            }
+            int start = 0;
+            while (start < length && (line[start] & 0xFF) <= ' ') start++;
+            while (length > start && (line[length - 1] & 0xFF) <= ' ') length--;
+            lineStart = start;
+            lineEnd = length;
+            return true;
+        }
+
+        private boolean fill() {
+            try {
+                if (channel != null) {
+                    long size = channel.size();
+                    if (mappedPosition >= size) return false;
+                    long length = Math.min(MAP_WINDOW, size - mappedPosition);
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, mappedPosition, length);
+                    mappedPosition += length;
+                    return true;
+                }
+                int n;
+                do {
+                    n = in.read(buffer.array());
+                } while (n == 0);
+                if (n < 0) return false;
+                buffer.position(0);
+                buffer.limit(n);
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) channel.close();
+        }
+    }
+
+    // Collects query results in a reused byte buffer and writes them out in large blocks
+    // instead of one System.out.println per query. Text is encoded like PrintStream would.
+    static class QueryOutput implements Closeable {
+        public static final int DEFAULT_FLUSH_SIZE = 1 << 16;
+
+        private final OutputStream out;
+        private final Charset charset = Charset.defaultCharset();
+        private final byte[] lineSeparator = System.lineSeparator().getBytes(charset);
+        private final byte[] digits = new byte[11];
+        private final int flushSize;
+        private final boolean flushEachQuery;
+        private byte[] buffer;
+        private int length;
+
+        // flushSize: buffered bytes that trigger a write; flushEachQuery: write after every query,
+        // for interactive use.
+        public QueryOutput(OutputStream out, int flushSize, boolean flushEachQuery) {
+            this.out = out;
+            this.flushSize = Math.max(1, flushSize);
+            this.flushEachQuery = flushEachQuery;
+            this.buffer = new byte[Math.max(this.flushSize, 64)];
+        }
+
+        public QueryOutput print(int value) {
+            int n = 0;
+            long v = value;
+            boolean negative = v < 0;
+            if (negative) v = -v;
+            do {
+                digits[n++] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+            ensureCapacity(n + 1);
+            if (negative) buffer[length++] = '-';
+            while (n > 0) buffer[length++] = digits[--n];
+            return this;
+        }
+
+        public QueryOutput print(String text) {
+            byte[] bytes = text.getBytes(charset);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+            return this;
+        }
+
+        public QueryOutput println() {
+            ensureCapacity(lineSeparator.length);
+            System.arraycopy(lineSeparator, 0, buffer, length, lineSeparator.length);
+            length += lineSeparator.length;
+            return this;
+        }
+
+        // Marks the end of one query's output.
+        public void endQuery() {
+            if (flushEachQuery || length >= flushSize) flush();
+        }
+
+        public void flush() {
+            try {
+                if (length > 0) {
+                    out.write(buffer, 0, length);
+                    length = 0;
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+    }
+
+    // Socket connection from the coordinator to one shard server, optionally with the shard
+    // process the coordinator started itself.
+    static class ShardConnection implements Closeable {
+        private final Socket socket;
+        private final Process process;
+        private final OutputStream out;
+        private final BufferedReader in;
+
+        private ShardConnection(Socket socket, Process process) throws IOException {
+            this.socket = socket;
+            this.process = process;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.defaultCharset()));
+        }
+
+        public static ShardConnection connect(String host, int port) throws IOException {
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            return new ShardConnection(socket, null);
+        }
+
+        // Starts "java NetworkSimulation --shard-serve=0" with this JVM's options and class
+        // path, reads the port it reports and connects to it over loopback.
+        public static ShardConnection spawn(List<String> shardArgs) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(NetworkSimulation.class.getName());
+            command.add("--shard-serve=0");
+            command.addAll(shardArgs);
+            Process process = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            BufferedReader announce = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+            String port = announce.readLine();
+            if (port == null) throw new IOException("shard process exited before listening");
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(port.trim()));
+            socket.setTcpNoDelay(true);
+            return new ShardConnection(socket, process);
+        }
+
+        public ShardConnection write(String line) throws IOException {
+            return write(line.getBytes(Charset.defaultCharset()));
+        }
+
+        public ShardConnection write(byte[] line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            return this;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        // Reads one reply line; everything written before must have been flushed.
+        public String readLine() throws IOException {
+            String line = in.readLine();
+            if (line == null) throw new EOFException("shard closed the connection");
+            return line;
+        }
+
+        // Closing the socket ends the shard's input, so a spawned shard exits on its own.
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+            } finally {
+                socket.close();
+            }
+            if (process != null) {
+                try {
+                    process.waitFor();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // Usage: java NetworkSimulation [--compact | --concurrent] [--flush-size=BYTES] [--flush-each-query] [commands-file]
+    // Commands are read from the file if one is given, otherwise from standard input.
+    // --compact stores clients in primitive arrays (CompactNetwork) instead of objects;
+    // --concurrent uses the thread-safe ConcurrentNetwork.
+    // --journal=DIR records every state change in DIR, with a checkpoint every
+    // --checkpoint-every=N commands (see CommandJournal).
+    // --replay=DIR --at=N starts from the state recorded in DIR after command N, so the
+    // commands read afterwards, typically TOWER_CLIENT_COUNT or NO_SIGNAL_COUNT, answer
+    // questions about that point in time.
+    // --shards=N starts N local shard processes and routes the commands to them (see
+    // ShardRouter); --shard-hosts=HOST:PORT,... uses shard servers that are already running
+    // instead. --region-size=S sets the side of the square regions the plane is cut into.
+    // --shard-serve=[HOST:]PORT runs a shard server: it accepts one connection (port 0 picks a
+    // free port and prints it) and executes the commands received on it.
+    // --metrics collects the counters printed by STATS (see Metrics); --metrics-dump=FILE also
+    // rewrites FILE with them every --metrics-interval=MS milliseconds (default 1000) and at
+    // the end of input. Neither can be combined with --shards or --shard-hosts.
+    // Query results are buffered and written when the buffer reaches the flush size and at
+    // the end of input; --flush-each-query writes every result immediately.
+    public static void main(String[] args) throws IOException {
+        String inputPath = null;
+        int flushSize = QueryOutput.DEFAULT_FLUSH_SIZE;
+        boolean flushEachQuery = false;
+        boolean compact = false;
+        boolean concurrent = false;
+        Path journalDirectory = null;
+        long checkpointInterval = CommandJournal.DEFAULT_CHECKPOINT_INTERVAL;
+        Path replayDirectory = null;
+        long replayTarget = Long.MAX_VALUE;
+        int shardCount = 0;
+        String shardHosts = null;
+        double regionSize = ShardRouter.DEFAULT_REGION_SIZE;
+        String shardServe = null;
+        boolean metricsEnabled = false;
+        Path metricsDump = null;
+        long metricsInterval = 1000;
+        for (String arg : args) {
+            if (arg.startsWith("--flush-size=")) {
+                flushSize = Integer.parseInt(arg.substring("--flush-size=".length()));
+            } else if (arg.equals("--flush-each-query")) {
+                flushEachQuery = true;
+            } else if (arg.equals("--compact")) {
+                compact = true;
+            } else if (arg.equals("--concurrent")) {
+                concurrent = true;
+            } else if (arg.startsWith("--journal=")) {
+                journalDirectory = Paths.get(arg.substring("--journal=".length()));
+            } else if (arg.startsWith("--checkpoint-every=")) {
+                checkpointInterval = Long.parseLong(arg.substring("--checkpoint-every=".length()));
+                if (checkpointInterval <= 0) throw new IllegalArgumentException("--checkpoint-every must be positive");
+            } else if (arg.startsWith("--replay=")) {
+                replayDirectory = Paths.get(arg.substring("--replay=".length()));
+            } else if (arg.startsWith("--at=")) {
+                replayTarget = Long.parseLong(arg.substring("--at=".length()));
+            } else if (arg.startsWith("--shards=")) {
+                shardCount = Integer.parseInt(arg.substring("--shards=".length()));
+            } else if (arg.startsWith("--shard-hosts=")) {
+                shardHosts = arg.substring("--shard-hosts=".length());
+            } else if (arg.startsWith("--region-size=")) {
+                regionSize = Double.parseDouble(arg.substring("--region-size=".length()));
+                if (!(regionSize > 0) || Double.isInfinite(regionSize)) {
+                    throw new IllegalArgumentException("--region-size must be positive and finite");
+                }
+            } else if (arg.startsWith("--shard-serve=")) {
+                shardServe = arg.substring("--shard-serve=".length());
+            } else if (arg.equals("--metrics")) {
+                metricsEnabled = true;
+            } else if (arg.startsWith("--metrics-dump=")) {
+                metricsDump = Paths.get(arg.substring("--metrics-dump=".length()));
+                metricsEnabled = true;
+            } else if (arg.startsWith("--metrics-interval=")) {
+                metricsInterval = Long.parseLong(arg.substring("--metrics-interval=".length()));
+                if (metricsInterval <= 0) throw new IllegalArgumentException("--metrics-interval must be positive");
+            } else {
+                inputPath = arg;
+            }
+        }
+        if (journalDirectory != null && replayDirectory != null) {
+            throw new IllegalArgumentException("--journal and --replay cannot be combined");
+        }
+        if (metricsEnabled && (shardCount > 0 || shardHosts != null)) {
+            throw new IllegalArgumentException("--metrics cannot be combined with --shards or --shard-hosts");
+        }
+        if (shardCount > 0 || shardHosts != null) {
+            List<String> shardArgs = new ArrayList<>();
+            if (compact) shardArgs.add("--compact");
+            if (concurrent) shardArgs.add("--concurrent");
+            runCoordinator(inputPath, flushSize, flushEachQuery, shardCount, shardHosts, shardArgs, regionSize);
+            return;
+        }
+        Socket shardSocket = shardServe != null ? acceptCoordinator(shardServe) : null;
+        Metrics metrics = metricsEnabled ? new Metrics() : null;
+        Metrics engineMetrics = metrics != null ? metrics : Metrics.NONE;
+        NetworkModel network = newNetwork(compact, concurrent, engineMetrics);
+        if (replayDirectory != null) {
+            network = CommandJournal.replay(replayDirectory, replayTarget, network);
+        }
+        try (Socket socket = shardSocket;
+             CommandReader reader = socket != null ? new CommandReader(socket.getInputStream())
+                     : inputPath != null ? CommandReader.open(Paths.get(inputPath)) : new CommandReader(System.in);
+             QueryOutput output = socket != null ? new QueryOutput(socket.getOutputStream(), flushSize, true)
+                     : new QueryOutput(System.out, flushSize, flushEachQuery);
+             CommandJournal journal = journalDirectory != null ? CommandJournal.create(journalDirectory, checkpointInterval) : null) {
+            if (journal != null) network = new JournalingNetwork(network, journal);
+            long commandNumber = 0;
+            long nextDump = metricsDump != null ? System.nanoTime() + metricsInterval * 1_000_000 : Long.MAX_VALUE;
+            while (reader.nextNonEmptyLine()) {
+                Command command = Command.match(reader);
+                if (command == null) {
+                    continue;
+                }
+                long start = metrics != null ? System.nanoTime() : 0;
+                if (journal != null) journal.beginCommand(++commandNumber);
+                switch (command) {
+                    case MOVE_CLIENT:
+                        moveClient(network, reader);
+                        break;
+                    case MOVE_BATCH:
+                        moveBatch(network, reader);
+                        break;
+                    case CHANGE_OPERATOR:
+                        changeOperator(network, reader);
+                        break;
+                    case TOWER_CLIENT_COUNT:
+                        towerClientCount(network, reader, output);
+                        break;
+                    case OPERATOR_SUBSCRIBER_COUNT:
+                        operatorSubscriberCount(network, reader, output);
+                        break;
+                    case ADD_CLIENT:
+                        addClient(network, reader);
+                        break;
+                    case REMOVE_CLIENT:
+                        removeClient(network, reader);
+                        break;
+                    case ADD_TOWER:
+                        addTower(network, reader);
+                        break;
+                    case REGISTER_OPERATOR_TOWER:
+                        registerOperatorTower(network, reader);
+                        break;
+                    case REMOVE_TOWER:
+                        removeTower(network, reader);
+                        break;
+                    case NO_SIGNAL_COUNT:
+                        noSignalCount(network, output);
+                        break;
+                    case ADD_OPERATOR:
+                        addOperator(network, reader);
+                        break;
+                    case SNAPSHOT:
+                        snapshot(network, reader);
+                        break;
+                    case SET_TOWER_CAPACITY:
+                        setTowerCapacity(network, reader);
+                        break;
+                    case REBALANCE:
+                        rebalance(network, output);
+                        break;
+                    case HANDOFF_CLIENT:
+                        handOffClient(network, reader, output);
+                        break;
+                    case STATS:
+                        stats(metrics, output);
+                        break;
+                    case RESTORE:
+                        NetworkModel restored = restore(newNetwork(compact, concurrent, engineMetrics), network, reader);
+                        if (journal != null && restored != network) {
+                            restored = new JournalingNetwork(restored, journal);
+                            journal.checkpoint(restored);
+                        }
+                        network = restored;
+                        break;
+                    default:
+                        break;
+                }
+                if (journal != null) journal.endCommand(network);
+                if (metrics != null) {
+                    long end = System.nanoTime();
+                    metrics.recordCommand(command, end - start);
+                    if (end - nextDump >= 0) {
+                        dumpMetrics(metrics, metricsDump);
+                        nextDump = end + metricsInterval * 1_000_000;
+                    }
+                }
+            }
+            if (metricsDump != null) dumpMetrics(metrics, metricsDump);
+        }
+    }
+
+    private static void runCoordinator(String inputPath, int flushSize, boolean flushEachQuery, int shardCount,
+                                       String shardHosts, List<String> shardArgs, double regionSize) throws IOException {
+        List<ShardConnection> shards = new ArrayList<>();
+        try {
+            if (shardHosts != null) {
+                for (String host : shardHosts.split(",")) {
+                    int colon = host.lastIndexOf(':');
+                    shards.add(ShardConnection.connect(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1))));
+                }
+            } else {
+                for (int i = 0; i < shardCount; i++) {
+                    shards.add(ShardConnection.spawn(shardArgs));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ShardConnection shard : shards) {
+                try {
+                    shard.close();
+                } catch (IOException ignored) {}
+            }
+            throw e;
+        }
+        try (ShardRouter router = new ShardRouter(shards, regionSize);
+             CommandReader reader = inputPath != null ? CommandReader.open(Paths.get(inputPath)) : new CommandReader(System.in);
+             QueryOutput output = new QueryOutput(System.out, flushSize, flushEachQuery)) {
+            router.run(reader, output);
+        }
+    }
+
+    // Listens on [host:]port, loopback by default, and waits for the coordinator to connect.
+    // The bound port goes to standard output so that a coordinator that started this process
+    // can find it.
+    private static Socket acceptCoordinator(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        InetAddress host = colon >= 0 ? InetAddress.getByName(address.substring(0, colon)) : InetAddress.getLoopbackAddress();
+        int port = Integer.parseInt(address.substring(colon + 1));
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(host, port), 1);
+            System.out.println(server.getLocalPort());
+            System.out.flush();
+            Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+
+    private static NetworkModel newNetwork(boolean compact, boolean concurrent, Metrics metrics) {
+        if (concurrent) return new ConcurrentNetwork(metrics);
+        return compact ? new CompactNetwork(metrics) : new Network(metrics);
+    }
+
+    private static void moveClient(NetworkModel network, CommandReader reader) {
+        reader.clearNumberError();
+        String phoneNumber = readNonEmptyLine(reader);
+        if (phoneNumber == null) return;
+        double x = reader.nextDouble();
+        double y = reader.nextDouble();
+        if (reader.isExhausted() || reader.hasNumberError()) return;
+        network.moveClient(phoneNumber, x, y);
+    }
+
+    // MOVE_BATCH is followed by a move count and then phone/x/y lines for each move.
+    private static void moveBatch(NetworkModel network, CommandReader reader) {
+        reader.clearNumberError();
+        int count = reader.nextInt();
+        if (reader.isExhausted() || reader.hasNumberError()) return;
+        List<ClientMove> moves = new ArrayList<>(Math.max(0, Math.min(count, 1 << 20)));
+        for (int i = 0; i < count; i++) {
+            reader.clearNumberError();
+            String phoneNumber = readNonEmptyLine(reader);
+            if (phoneNumber == null) break;
+            double x = reader.nextDouble();
+            double y = reader.nextDouble();
+            if (reader.isExhausted()) break;
+            if (!reader.hasNumberError()) {
+                moves.add(new ClientMove(phoneNumber, x, y));
+            }
+        }
+        network.moveClients(moves);
+    }
+
+    private static void changeOperator(NetworkModel network, CommandReader reader) {
+        String phoneNumber = readNonEmptyLine(reader);
+        String newOperatorName = readNonEmptyLine(reader);
+        if (phoneNumber == null || newOperatorName == null) return;
+        network.changeOperator(phoneNumber, newOperatorName);
+    }
+
+    private static void towerClientCount(NetworkModel network, CommandReader reader, QueryOutput output) {
+        String towerId = readNonEmptyLine(reader);
+        output.print(network.towerClientCount(towerId)).println().endQuery();
+    }
+
+    private static void operatorSubscriberCount(NetworkModel network, CommandReader reader, QueryOutput output) {
+        String operatorName = readNonEmptyLine(reader);
+        output.print(network.operatorSubscriberCount(operatorName)).println().endQuery();
+    }
+
+    private static void addClient(NetworkModel network, CommandReader reader) {
+        reader.clearNumberError();
+        String phoneNumber = readNonEmptyLine(reader);
+        String operatorName = readNonEmptyLine(reader);
+        if (phoneNumber == null || operatorName == null) return;
+        double x = reader.nextDouble();
+        double y = reader.nextDouble();
+        if (reader.isExhausted() || reader.hasNumberError()) return;
+        network.addClient(phoneNumber, operatorName, x, y);
+    }
+
+    private static void removeClient(NetworkModel network, CommandReader reader) {
+        String phoneNumber = readNonEmptyLine(reader);
+        if (phoneNumber != null) network.removeClient(phoneNumber);
+    }
+
+    private static void addTower(NetworkModel network, CommandReader reader) {
+        reader.clearNumberError();
+        String towerId = readNonEmptyLine(reader);
+        if (towerId == null) return;
+        double x = reader.nextDouble();
+        double y = reader.nextDouble();
+        double radius = reader.nextDouble();
+        if (reader.isExhausted() || reader.hasNumberError()) return;
+        network.addTower(towerId, x, y, radius);
+    }
+
+    private static void registerOperatorTower(NetworkModel network, CommandReader reader) {
+        String operatorName = readNonEmptyLine(reader);
+        String towerId = readNonEmptyLine(reader);
+        if (operatorName == null || towerId == null) return;
+        network.registerOperatorTower(operatorName, towerId);
+    }
+
+    private static void removeTower(NetworkModel network, CommandReader reader) {
+        String towerId = readNonEmptyLine(reader);
+        if (towerId != null) network.removeTower(towerId);
+    }
+
+    private static void noSignalCount(NetworkModel network, QueryOutput output) {
+        assert network.countsConsistent() : "client counters out of sync";
+        for (Map.Entry<String, Integer> entry : network.noSignalCounts().entrySet()) {
+            output.print(entry.getKey()).print(": ").print(entry.getValue()).print(" phones without signal.").println();
+        }
+        output.endQuery();
+    }
+
+    private static void addOperator(NetworkModel network, CommandReader reader) {
+        String operatorName = readNonEmptyLine(reader);
+        if (operatorName != null) network.addOperator(operatorName);
+    }
+
+    // SET_TOWER_CAPACITY is followed by the tower id and its capacity; a negative capacity
+    // removes the limit.
+    private static void setTowerCapacity(NetworkModel network, CommandReader reader) {
+        reader.clearNumberError();
+        String towerId = readNonEmptyLine(reader);
+        if (towerId == null) return;
+        int capacity = reader.nextInt();
+        if (reader.isExhausted() || reader.hasNumberError()) return;
+        network.setTowerCapacity(towerId, capacity);
+    }
+
+    // Capacities hold only right after the pass, so the answer says that later commands do
+    // not keep to them.
+    private static void rebalance(NetworkModel network, QueryOutput output) {
+        RebalanceResult result = network.rebalance();
+        assert network.countsConsistent() : "client counters out of sync";
+        output.print("Rebalanced ").print(result.getMovedClients()).print(" clients, peak tower load ")
+              .print(result.getPeakLoad()).print(". One-shot: later commands ignore tower capacity.")
+              .println().endQuery();
+    }
+
+    // HANDOFF_CLIENT is followed by a phone number. Sent by ShardRouter when a client moves to
+    // another shard: removes the client and answers with its operator's name, or with an
+    // empty line if there is no client with that number.
+    private static void handOffClient(NetworkModel network, CommandReader reader, QueryOutput output) {
+        String phoneNumber = readNonEmptyLine(reader);
+        String operatorName = phoneNumber != null ? network.clientOperatorName(phoneNumber) : null;
+        if (operatorName != null) network.removeClient(phoneNumber);
+        output.print(operatorName != null ? operatorName : "").println().endQuery();
+    }
+
+    // STATS prints the Metrics report, or a note that metrics are off.
+    private static void stats(Metrics metrics, QueryOutput output) {
+        if (metrics == null) {
+            output.print("Metrics are disabled, run with --metrics.").println().endQuery();
+            return;
+        }
+        output.print(metrics.report()).endQuery();
+    }
+
+    private static void dumpMetrics(Metrics metrics, Path path) {
+        try {
+            metrics.dump(path);
+        } catch (IOException e) {
+            System.err.println("Metrics dump failed: " + e.getMessage());
+        }
+    }
+
+    // SNAPSHOT is followed by the file to write.
+    private static void snapshot(NetworkModel network, CommandReader reader) {
+        String path = readNonEmptyLine(reader);
+        if (path == null) return;
+        try {
+            network.snapshot(Paths.get(path));
+        } catch (IOException e) {
+            System.err.println("SNAPSHOT failed: " + e.getMessage());
+        }
+    }
+
+    // RESTORE is followed by the file to load. Returns the network to continue with: the
+    // restored one, or the current one if the snapshot could not be read.
+    private static NetworkModel restore(NetworkModel empty, NetworkModel current, CommandReader reader) {
+        String path = readNonEmptyLine(reader);
+        if (path == null) return current;
+        try {
+            empty.restore(Paths.get(path));
+            return empty;
+        } catch (IOException e) {
+            System.err.println("RESTORE failed: " + e.getMessage());
+            return current;
+        }
+    }
+
+    private static String readNonEmptyLine(CommandReader reader) {
+        return reader.nextNonEmptyLine() ? reader.lineAsString() : null;
     }
 }
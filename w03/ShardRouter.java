@@ -0,0 +1,394 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+// Coordinator for the sharded mode (--shards or --shard-hosts). The plane is cut into
+// square regions of regionSize, and each region belongs to one shard. Every shard is a
+// NetworkSimulation process serving commands over a socket (--shard-serve).
+// - Clients live on the shard that owns their position. A MOVE_CLIENT into another shard's
+//   region hands the client off: HANDOFF_CLIENT on the old shard, ADD_CLIENT on the new
+//   one. Clients with non-finite coordinates live on shard 0.
+// - A tower is copied read-only to every shard owning a region its coverage can reach,
+//   and to shard 0, which holds all towers. Commands naming a tower go to those shards.
+// - OPERATOR_SUBSCRIBER_COUNT, TOWER_CLIENT_COUNT and NO_SIGNAL_COUNT are sent to the
+//   shards involved, and the answers are added up.
+// Differences from one process: the client-count tie-break between equally near towers
+// only counts the deciding shard's clients. A handed-off client joins the current operator
+// with its operator's name. SNAPSHOT, RESTORE, SET_TOWER_CAPACITY and REBALANCE are
+// skipped with a warning.
+class ShardRouter implements Closeable {
+    public static final double DEFAULT_REGION_SIZE = 1024;
+    // Towers reaching more regions than this are sent to every shard.
+    private static final int MAX_TOWER_REGIONS = 64;
+    // Region indexes beyond this are not enumerated; such towers also go to every shard.
+    private static final double MAX_REGION_INDEX = 0x1p62;
+    private static final String NO_SIGNAL_SUFFIX = " phones without signal.";
+
+    private final List<NetworkSimulation.ShardConnection> shards;
+    private final double regionSize;
+    private final Set<String> operatorNames = new HashSet<>();
+    private final Map<String, Integer> shardByPhone = new HashMap<>();
+    // Shards holding the tower that each id currently names, in shard order.
+    private final Map<String, int[]> shardsByTower = new HashMap<>();
+    // MOVE_BATCH moves not yet sent, per shard, as phone/x/y line triples.
+    private final List<List<byte[]>> pendingMoves = new ArrayList<>();
+
+    public ShardRouter(List<NetworkSimulation.ShardConnection> shards, double regionSize) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("no shards");
+        this.shards = shards;
+        this.regionSize = regionSize;
+        for (int i = 0; i < shards.size(); i++) {
+            pendingMoves.add(new ArrayList<>());
+        }
+    }
+
+    public void run(NetworkSimulation.CommandReader reader, NetworkSimulation.QueryOutput output) throws IOException {
+        while (reader.nextNonEmptyLine()) {
+            NetworkSimulation.Command command = NetworkSimulation.Command.match(reader);
+            if (command == null) {
+                continue;
+            }
+            switch (command) {
+                case MOVE_CLIENT:
+                    moveClient(reader);
+                    break;
+                case MOVE_BATCH:
+                    moveBatch(reader);
+                    break;
+                case CHANGE_OPERATOR:
+                    changeOperator(reader);
+                    break;
+                case TOWER_CLIENT_COUNT:
+                    towerClientCount(reader, output);
+                    break;
+                case OPERATOR_SUBSCRIBER_COUNT:
+                    operatorSubscriberCount(reader, output);
+                    break;
+                case ADD_CLIENT:
+                    addClient(reader);
+                    break;
+                case REMOVE_CLIENT:
+                    removeClient(reader);
+                    break;
+                case ADD_TOWER:
+                    addTower(reader);
+                    break;
+                case REGISTER_OPERATOR_TOWER:
+                    registerOperatorTower(reader);
+                    break;
+                case REMOVE_TOWER:
+                    removeTower(reader);
+                    break;
+                case NO_SIGNAL_COUNT:
+                    noSignalCount(output);
+                    break;
+                case ADD_OPERATOR:
+                    addOperator(reader);
+                    break;
+                case SNAPSHOT:
+                case RESTORE:
+                case HANDOFF_CLIENT:
+                    skipUnsupported(command, reader, 1);
+                    break;
+                case SET_TOWER_CAPACITY:
+                    skipUnsupported(command, reader, 2);
+                    break;
+                case REBALANCE:
+                case STATS:
+                    skipUnsupported(command, reader, 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void moveClient(NetworkSimulation.CommandReader reader) throws IOException {
+        reader.clearNumberError();
+        byte[] phoneLine = readLineBytes(reader);
+        if (phoneLine == null) return;
+        String phoneNumber = reader.lineAsString();
+        double x = reader.nextDouble();
+        byte[] xLine = reader.lineBytes();
+        double y = reader.nextDouble();
+        byte[] yLine = reader.lineBytes();
+        if (reader.isExhausted() || reader.hasNumberError()) return;
+        Integer shard = shardByPhone.get(phoneNumber);
+        if (shard == null) return;
+        int target = shardFor(x, y);
+        if (target == shard) {
+            shards.get(shard).write(NetworkSimulation.Command.MOVE_CLIENT.name()).write(phoneLine).write(xLine).write(yLine);
+        } else {
+            handOff(phoneNumber, phoneLine, shard, target, xLine, yLine);
+        }
+    }
+
+    // Moves within one shard are sent on as a MOVE_BATCH; a move across shards first sends
+    // the moves collected so far, so that the handoff sees them.
+    private void moveBatch(NetworkSimulation.CommandReader reader) throws IOException {
+        reader.clearNumberError();
+        int count = reader.nextInt();
+        if (reader.isExhausted() || reader.hasNumberError()) return;
+        for (int i = 0; i < count; i++) {
+            reader.clearNumberError();
+            byte[] phoneLine = readLineBytes(reader);
+            if (phoneLine == null) break;
+            String phoneNumber = reader.lineAsString();
+            double x = reader.nextDouble();
+            byte[] xLine = reader.lineBytes();
+            double y = reader.nextDouble();
+            byte[] yLine = reader.lineBytes();
+            if (reader.isExhausted()) break;
+            if (reader.hasNumberError()) continue;
+            Integer shard = shardByPhone.get(phoneNumber);
+            if (shard == null) continue;
+            int target = shardFor(x, y);
+            if (target == shard) {
+                List<byte[]> pending = pendingMoves.get(shard);
+                pending.add(phoneLine);
+                pending.add(xLine);
+                pending.add(yLine);
+            } else {
+                sendPendingMoves();
+                handOff(phoneNumber, phoneLine, shard, target, xLine, yLine);
+            }
+        }
+        sendPendingMoves();
+    }
+
+    private void sendPendingMoves() throws IOException {
+        for (int shard = 0; shard < shards.size(); shard++) {
+            List<byte[]> pending = pendingMoves.get(shard);
+            if (pending.isEmpty()) continue;
+            NetworkSimulation.ShardConnection connection = shards.get(shard);
+            connection.write(NetworkSimulation.Command.MOVE_BATCH.name()).write(Integer.toString(pending.size() / 3));
+            for (byte[] line : pending) {
+                connection.write(line);
+            }
+            pending.clear();
+        }
+    }
+
+    private void handOff(String phoneNumber, byte[] phoneLine, int from, int to, byte[] xLine, byte[] yLine)
+            throws IOException {
+        NetworkSimulation.ShardConnection source = shards.get(from);
+        source.write(NetworkSimulation.Command.HANDOFF_CLIENT.name()).write(phoneLine).flush();
+        String operatorName = source.readLine();
+        if (operatorName.isEmpty()) {
+            shardByPhone.remove(phoneNumber);
+            return;
+        }
+        shards.get(to).write(NetworkSimulation.Command.ADD_CLIENT.name()).write(phoneLine).write(operatorName).write(xLine).write(yLine);
+        shardByPhone.put(phoneNumber, to);
+    }
+
+    private void changeOperator(NetworkSimulation.CommandReader reader) throws IOException {
+        byte[] phoneLine = readLineBytes(reader);
+        String phoneNumber = phoneLine != null ? reader.lineAsString() : null;
+        byte[] operatorLine = readLineBytes(reader);
+        if (phoneLine == null || operatorLine == null) return;
+        Integer shard = shardByPhone.get(phoneNumber);
+        if (shard == null) return;
+        shards.get(shard).write(NetworkSimulation.Command.CHANGE_OPERATOR.name()).write(phoneLine).write(operatorLine);
+    }
+
+    private void towerClientCount(NetworkSimulation.CommandReader reader, NetworkSimulation.QueryOutput output) throws IOException {
+        byte[] towerLine = readLineBytes(reader);
+        int[] holders = towerLine != null ? shardsByTower.get(reader.lineAsString()) : null;
+        int total = 0;
+        if (holders != null) {
+            for (int shard : holders) {
+                shards.get(shard).write(NetworkSimulation.Command.TOWER_CLIENT_COUNT.name()).write(towerLine).flush();
+            }
+            for (int shard : holders) {
+                total += Integer.parseInt(shards.get(shard).readLine().trim());
+            }
+        }
+        output.print(total).println().endQuery();
+    }
+
+    private void operatorSubscriberCount(NetworkSimulation.CommandReader reader, NetworkSimulation.QueryOutput output) throws IOException {
+        byte[] operatorLine = readLineBytes(reader);
+        int total = 0;
+        if (operatorLine != null) {
+            for (NetworkSimulation.ShardConnection shard : shards) {
+                shard.write(NetworkSimulation.Command.OPERATOR_SUBSCRIBER_COUNT.name()).write(operatorLine).flush();
+            }
+            for (NetworkSimulation.ShardConnection shard : shards) {
+                total += Integer.parseInt(shard.readLine().trim());
+            }
+        }
+        output.print(total).println().endQuery();
+    }
+
+    private void addClient(NetworkSimulation.CommandReader reader) throws IOException {
+        reader.clearNumberError();
+        byte[] phoneLine = readLineBytes(reader);
+        String phoneNumber = phoneLine != null ? reader.lineAsString() : null;
+        byte[] operatorLine = readLineBytes(reader);
+        String operatorName = operatorLine != null ? reader.lineAsString() : null;
+        if (phoneLine == null || operatorLine == null) return;
+        double x = reader.nextDouble();
+        byte[] xLine = reader.lineBytes();
+        double y = reader.nextDouble();
+        byte[] yLine = reader.lineBytes();
+        if (reader.isExhausted() || reader.hasNumberError()) return;
+        // An unknown operator leaves the client, and any earlier one with the number, as is.
+        if (!operatorNames.contains(operatorName)) return;
+        // A client already on another shard stays there under its number, as a client
+        // replaced by a later ADD_CLIENT does; it is just no longer routed to.
+        int target = shardFor(x, y);
+        shards.get(target).write(NetworkSimulation.Command.ADD_CLIENT.name())
+            .write(phoneLine).write(operatorLine).write(xLine).write(yLine);
+        shardByPhone.put(phoneNumber, target);
+    }
+
+    private void removeClient(NetworkSimulation.CommandReader reader) throws IOException {
+        byte[] phoneLine = readLineBytes(reader);
+        if (phoneLine == null) return;
+        Integer shard = shardByPhone.remove(reader.lineAsString());
+        if (shard != null) shards.get(shard).write(NetworkSimulation.Command.REMOVE_CLIENT.name()).write(phoneLine);
+    }
+
+    private void addTower(NetworkSimulation.CommandReader reader) throws IOException {
+        reader.clearNumberError();
+        byte[] towerLine = readLineBytes(reader);
+        if (towerLine == null) return;
+        String towerId = reader.lineAsString();
+        double x = reader.nextDouble();
+        byte[] xLine = reader.lineBytes();
+        double y = reader.nextDouble();
+        byte[] yLine = reader.lineBytes();
+        double radius = reader.nextDouble();
+        byte[] radiusLine = reader.lineBytes();
+        if (reader.isExhausted() || reader.hasNumberError()) return;
+        int[] holders = shardsCovering(x, y, radius);
+        for (int shard : holders) {
+            shards.get(shard).write(NetworkSimulation.Command.ADD_TOWER.name())
+                .write(towerLine).write(xLine).write(yLine).write(radiusLine);
+        }
+        shardsByTower.put(towerId, holders);
+    }
+
+    private void registerOperatorTower(NetworkSimulation.CommandReader reader) throws IOException {
+        byte[] operatorLine = readLineBytes(reader);
+        byte[] towerLine = readLineBytes(reader);
+        if (operatorLine == null || towerLine == null) return;
+        int[] holders = shardsByTower.get(reader.lineAsString());
+        if (holders == null) return;
+        for (int shard : holders) {
+            shards.get(shard).write(NetworkSimulation.Command.REGISTER_OPERATOR_TOWER.name()).write(operatorLine).write(towerLine);
+        }
+    }
+
+    private void removeTower(NetworkSimulation.CommandReader reader) throws IOException {
+        byte[] towerLine = readLineBytes(reader);
+        if (towerLine == null) return;
+        int[] holders = shardsByTower.remove(reader.lineAsString());
+        if (holders == null) return;
+        for (int shard : holders) {
+            shards.get(shard).write(NetworkSimulation.Command.REMOVE_TOWER.name()).write(towerLine);
+        }
+    }
+
+    // Every shard knows every operator, so each answers with one line per operator name.
+    private void noSignalCount(NetworkSimulation.QueryOutput output) throws IOException {
+        for (NetworkSimulation.ShardConnection shard : shards) {
+            shard.write(NetworkSimulation.Command.NO_SIGNAL_COUNT.name()).flush();
+        }
+        SortedMap<String, Integer> counts = new TreeMap<>();
+        for (NetworkSimulation.ShardConnection shard : shards) {
+            for (int i = 0; i < operatorNames.size(); i++) {
+                String line = shard.readLine();
+                if (!line.endsWith(NO_SIGNAL_SUFFIX)) throw new IOException("unexpected shard reply: " + line);
+                line = line.substring(0, line.length() - NO_SIGNAL_SUFFIX.length());
+                int separator = line.lastIndexOf(": ");
+                counts.merge(line.substring(0, separator), Integer.parseInt(line.substring(separator + 2)), Integer::sum);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            output.print(entry.getKey()).print(": ").print(entry.getValue()).print(NO_SIGNAL_SUFFIX).println();
+        }
+        output.endQuery();
+    }
+
+    private void addOperator(NetworkSimulation.CommandReader reader) throws IOException {
+        byte[] operatorLine = readLineBytes(reader);
+        if (operatorLine == null) return;
+        operatorNames.add(reader.lineAsString());
+        for (NetworkSimulation.ShardConnection shard : shards) {
+            shard.write(NetworkSimulation.Command.ADD_OPERATOR.name()).write(operatorLine);
+        }
+    }
+
+    private void skipUnsupported(NetworkSimulation.Command command, NetworkSimulation.CommandReader reader, int argumentLines) {
+        for (int i = 0; i < argumentLines; i++) {
+            reader.nextNonEmptyLine();
+        }
+        System.err.println(command + " is not supported in sharded mode");
+    }
+
+    // Shard owning the region that contains (x, y).
+    private int shardFor(double x, double y) {
+        if (!Double.isFinite(x) || !Double.isFinite(y)) return 0;
+        return shardOfRegion((long) Math.floor(x / regionSize), (long) Math.floor(y / regionSize));
+    }
+
+    private int shardOfRegion(long cx, long cy) {
+        long h = cx * 0x9E3779B97F4A7C15L + cy;
+        h ^= h >>> 29;
+        return (int) Math.floorMod(h * 0xBF58476D1CE4E5B9L, (long) shards.size());
+    }
+
+    // Shards that must hold a tower: shard 0, plus the owners of every region the coverage
+    // box touches, or all shards when the box is unbounded or spans too many regions.
+    private int[] shardsCovering(double x, double y, double radius) {
+        boolean[] holds = new boolean[shards.size()];
+        holds[0] = true;
+        if (!(radius < 0)) {
+            // Slightly generous, like CellTower.overlaps, so rounding never drops a region.
+            double reach = radius * (1 + 1e-9);
+            double minX = Math.floor((x - reach) / regionSize);
+            double maxX = Math.floor((x + reach) / regionSize);
+            double minY = Math.floor((y - reach) / regionSize);
+            double maxY = Math.floor((y + reach) / regionSize);
+            double regions = (maxX - minX + 1) * (maxY - minY + 1);
+            if (!(regions <= MAX_TOWER_REGIONS) || !(Math.abs(minX) <= MAX_REGION_INDEX)
+                    || !(Math.abs(maxX) <= MAX_REGION_INDEX) || !(Math.abs(minY) <= MAX_REGION_INDEX)
+                    || !(Math.abs(maxY) <= MAX_REGION_INDEX)) {
+                Arrays.fill(holds, true);
+            } else {
+                for (long i = (long) minX; i <= (long) maxX; i++) {
+                    for (long j = (long) minY; j <= (long) maxY; j++) {
+                        holds[shardOfRegion(i, j)] = true;
+                    }
+                }
+            }
+        }
+        int count = 0;
+        for (boolean held : holds) if (held) count++;
+        int[] result = new int[count];
+        count = 0;
+        for (int i = 0; i < holds.length; i++) {
+            if (holds[i]) result[count++] = i;
+        }
+        return result;
+    }
+
+    private static byte[] readLineBytes(NetworkSimulation.CommandReader reader) {
+        return reader.nextNonEmptyLine() ? reader.lineBytes() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (NetworkSimulation.ShardConnection shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
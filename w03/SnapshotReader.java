@@ -0,0 +1,82 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads a snapshot file through memory-mapped windows, matching SnapshotWriter.
+class SnapshotReader implements Closeable {
+    private static final long MAP_WINDOW = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer buffer;
+    private long windowStart;
+
+    private SnapshotReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(MAP_WINDOW, size));
+    }
+
+    public static SnapshotReader open(Path path) throws IOException {
+        return new SnapshotReader(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    public int getByte() throws IOException {
+        ensure(1);
+        return buffer.get() & 0xFF;
+    }
+
+    public int getInt() throws IOException {
+        ensure(4);
+        return buffer.getInt();
+    }
+
+    public long getLong() throws IOException {
+        ensure(8);
+        return buffer.getLong();
+    }
+
+    public double getDouble() throws IOException {
+        ensure(8);
+        return buffer.getDouble();
+    }
+
+    public String getString() throws IOException {
+        int length = getInt();
+        if (length < 0) throw new IOException("corrupt snapshot string length " + length);
+        ensure(length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public boolean isAtEnd() {
+        return windowStart + buffer.position() >= size;
+    }
+
+    public void seek(long position) throws IOException {
+        if (position < 0 || position > size) throw new EOFException("seek past end of file");
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+        windowStart = position;
+    }
+
+    // Maps a new window at the current position if fewer than the given bytes are left.
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return;
+        long position = windowStart + buffer.position();
+        if (position + bytes > size) throw new EOFException("truncated snapshot");
+        long length = Math.min(Math.max(MAP_WINDOW, bytes), size - position);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        windowStart = position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
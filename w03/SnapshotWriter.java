@@ -0,0 +1,84 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Buffered big-endian writer for snapshot files, draining to a FileChannel.
+class SnapshotWriter implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+    private SnapshotWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    public static SnapshotWriter create(Path path) throws IOException {
+        return new SnapshotWriter(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    }
+
+    public void putByte(int value) throws IOException {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    public void putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    public void putLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    public void putDouble(double value) throws IOException {
+        ensure(8);
+        buffer.putDouble(value);
+    }
+
+    public void putString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putInt(bytes.length);
+        if (bytes.length > buffer.capacity()) {
+            drain();
+            ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+            while (wrapped.hasRemaining()) channel.write(wrapped);
+            return;
+        }
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    // Bytes written so far, including those still in the buffer.
+    public long position() throws IOException {
+        return channel.position() + buffer.position();
+    }
+
+    // Hands buffered bytes to the file, for writers that stay open between batches.
+    public void flush() throws IOException {
+        drain();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+}
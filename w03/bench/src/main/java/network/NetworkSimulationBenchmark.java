@@ -0,0 +1,100 @@
+package network;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+// JMH version of NetworkBenchmark: the same synthetic cities and operation mixes, with
+// forked JVMs and JMH warmup instead of the hand-rolled timing loop.
+// Every invocation runs one whole mix (for example, moving every client once) on a network
+// that @Setup(Level.Invocation) has built outside the timed region, so the score is the time
+// per mix; divide by the operation count NetworkBenchmark prints to compare per operation.
+// -prof gc reports the allocation rate, but in this mode it also counts the per-invocation
+// set-up; NetworkBenchmark's bytes/op column counts the timed mix alone.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NetworkSimulationBenchmark {
+    @Param({"object", "compact", "concurrent"})
+    public String engine;
+    @Param({"10000"})
+    public int towers;
+    @Param({"4"})
+    public int operators;
+    @Param({"20"})
+    public int clientsPerTower;
+    @Param({"15"})
+    public double radius;
+    @Param({"42"})
+    public long seed;
+
+    private NetworkBenchmark.City city;
+    private final Map<String, NetworkBenchmark.Operation> operations = new HashMap<>();
+    private NetworkBenchmark.Operation operation;
+    private NetworkSimulation.NetworkModel network;
+
+    @Setup(Level.Trial)
+    public void createCity() {
+        city = new NetworkBenchmark.City(towers, operators, clientsPerTower, radius, seed);
+        for (NetworkBenchmark.Benchmark benchmark : NetworkBenchmark.benchmarks()) {
+            operations.put(benchmark.name, benchmark.operation);
+        }
+    }
+
+    // Builds a fresh network for the mix named by the running @Benchmark method.
+    @Setup(Level.Invocation)
+    public void createNetwork(BenchmarkParams params) {
+        String method = params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1);
+        operation = operations.get(method);
+        network = operation.setUp(city, NetworkBenchmark.engine(engine));
+    }
+
+    @TearDown(Level.Invocation)
+    public void dropNetwork() {
+        network = null;
+    }
+
+    private int run() {
+        return operation.run(city, network);
+    }
+
+    @Benchmark
+    public int addClient() {
+        return run();
+    }
+
+    @Benchmark
+    public int moveClient() {
+        return run();
+    }
+
+    @Benchmark
+    public int moveClients() {
+        return run();
+    }
+
+    @Benchmark
+    public int removeClient() {
+        return run();
+    }
+
+    @Benchmark
+    public int removeTower() {
+        return run();
+    }
+
+    @Benchmark
+    public int towerClientCount() {
+        return run();
+    }
+
+    @Benchmark
+    public int noSignalCount() {
+        return run();
+    }
+}
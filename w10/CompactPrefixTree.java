@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+// CompactPrefixTree: Same insert and lookup operations as PrefixTree, with the nodes kept
+// in flat arrays instead of TrieNode objects and TreeMaps.
+// Nodes are numbered from 0 (the root). The children of a node are a run of edges in the
+// edgeLabel/edgeChild arrays, sorted by character, so a lookup is a binary search over chars
+// and nothing is boxed. A run has room for a power of two of edges; when it is full it is
+// moved to a run twice the size and the old run goes on a free list for reuse.
+class CompactPrefixTree {
+    private static final int ROOT = 0;
+    private static final int NO_RUN = -1;
+
+    // Per node: where its run of edges starts, how many children it has, and the end mark.
+    private int[] childStart = new int[16];
+    private int[] childCount = new int[16];
+    private boolean[] endOfWord = new boolean[16];
+    private int nodeCount = 1;
+
+    // Edge runs: the character of each edge and the node it leads to.
+    private char[] edgeLabel = new char[16];
+    private int[] edgeChild = new int[16];
+    private int edgeEnd = 0;
+    // Free runs by log2 of their size, chained through edgeChild.
+    private final int[] freeRuns = new int[32];
+
+    public CompactPrefixTree() {
+        Arrays.fill(freeRuns, NO_RUN);
+    }
+
+    // Inserts a word into the trie.
+    public void insert(String word) {
+        int node = ROOT;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            int index = findChild(node, c);
+            node = index >= 0 ? edgeChild[childStart[node] + index] : addChild(node, -index - 1, c);
+        }
+        endOfWord[node] = true;
+    }
+
+    // Searches for a full word in the trie.
+    public boolean search(String word) {
+        int node = find(word);
+        return node >= 0 && endOfWord[node];
+    }
+
+    // Checks if any word in the trie starts with the given prefix.
+    public boolean startsWith(String prefix) {
+        return find(prefix) >= 0;
+    }
+
+    // Number of nodes, the root included.
+    public int size() {
+        return nodeCount;
+    }
+
+    // Node reached by following the characters of key from the root, or -1.
+    private int find(String key) {
+        int node = ROOT;
+        for (int i = 0; i < key.length(); i++) {
+            int index = findChild(node, key.charAt(i));
+            if (index < 0) return -1;
+            node = edgeChild[childStart[node] + index];
+        }
+        return node;
+    }
+
+    // Position of the edge for c among the node's children, or -(insertion point) - 1.
+    private int findChild(int node, char c) {
+        int start = childStart[node];
+        int low = 0;
+        int high = childCount[node] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char label = edgeLabel[start + middle];
+            if (label < c) {
+                low = middle + 1;
+            } else if (label > c) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    // Adds a new child for c at the given position among the node's children.
+    private int addChild(int node, int position, char c) {
+        int count = childCount[node];
+        int start = childStart[node];
+        // A run is full when the count reaches a power of two (or is 0).
+        if ((count & (count - 1)) == 0) {
+            int newStart = allocateRun(count == 0 ? 1 : 2 * count);
+            System.arraycopy(edgeLabel, start, edgeLabel, newStart, count);
+            System.arraycopy(edgeChild, start, edgeChild, newStart, count);
+            if (count > 0) releaseRun(start, count);
+            start = newStart;
+            childStart[node] = start;
+        }
+        System.arraycopy(edgeLabel, start + position, edgeLabel, start + position + 1, count - position);
+        System.arraycopy(edgeChild, start + position, edgeChild, start + position + 1, count - position);
+        int child = newNode();
+        edgeLabel[start + position] = c;
+        edgeChild[start + position] = child;
+        childCount[node] = count + 1;
+        return child;
+    }
+
+    private int newNode() {
+        if (nodeCount == childStart.length) {
+            int capacity = nodeCount * 2;
+            childStart = Arrays.copyOf(childStart, capacity);
+            childCount = Arrays.copyOf(childCount, capacity);
+            endOfWord = Arrays.copyOf(endOfWord, capacity);
+        }
+        return nodeCount++;
+    }
+
+    private int allocateRun(int size) {
+        int sizeClass = Integer.numberOfTrailingZeros(size);
+        int start = freeRuns[sizeClass];
+        if (start != NO_RUN) {
+            freeRuns[sizeClass] = edgeChild[start];
+            return start;
+        }
+        if (edgeEnd + size > edgeLabel.length) {
+            int capacity = Math.max(edgeLabel.length * 2, edgeEnd + size);
+            edgeLabel = Arrays.copyOf(edgeLabel, capacity);
+            edgeChild = Arrays.copyOf(edgeChild, capacity);
+        }
+        start = edgeEnd;
+        edgeEnd += size;
+        return start;
+    }
+
+    private void releaseRun(int start, int size) {
+        int sizeClass = Integer.numberOfTrailingZeros(size);
+        edgeChild[start] = freeRuns[sizeClass];
+        freeRuns[sizeClass] = start;
+    }
+}
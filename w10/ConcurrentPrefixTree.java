@@ -0,0 +1,123 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// ConcurrentTrieNode: A node of ConcurrentPrefixTree. The children are an immutable table that
+// is replaced with compareAndSet when a child is added, never changed in place.
+class ConcurrentTrieNode {
+    static final AtomicReferenceFieldUpdater<ConcurrentTrieNode, Children> CHILDREN =
+            AtomicReferenceFieldUpdater.newUpdater(ConcurrentTrieNode.class, Children.class, "children");
+
+    final char value;
+    volatile Children children = Children.EMPTY;
+    // Only ever set, so a word once found stays found.
+    volatile boolean isEndOfWord;
+
+    public ConcurrentTrieNode(char value) {
+        this.value = value;
+    }
+
+    // Child characters in sorted order and the nodes they lead to.
+    static final class Children {
+        static final Children EMPTY = new Children(new char[0], new ConcurrentTrieNode[0]);
+
+        final char[] labels;
+        final ConcurrentTrieNode[] nodes;
+
+        Children(char[] labels, ConcurrentTrieNode[] nodes) {
+            this.labels = labels;
+            this.nodes = nodes;
+        }
+
+        // Position of the child for c, or -(insertion point) - 1.
+        int find(char c) {
+            return Arrays.binarySearch(labels, c);
+        }
+
+        // Copy with child inserted at position.
+        Children with(int position, ConcurrentTrieNode child) {
+            int count = labels.length;
+            char[] newLabels = new char[count + 1];
+            ConcurrentTrieNode[] newNodes = new ConcurrentTrieNode[count + 1];
+            System.arraycopy(labels, 0, newLabels, 0, position);
+            System.arraycopy(nodes, 0, newNodes, 0, position);
+            newLabels[position] = child.value;
+            newNodes[position] = child;
+            System.arraycopy(labels, position, newLabels, position + 1, count - position);
+            System.arraycopy(nodes, position, newNodes, position + 1, count - position);
+            return new Children(newLabels, newNodes);
+        }
+    }
+}
+
+// ConcurrentPrefixTree: PrefixTree for many reader threads and concurrent writers, without
+// locks. search and startsWith are wait-free: one volatile read and a binary search per
+// character. insert is lock-free: the missing part of a word is built as a private chain of
+// nodes and published with one compareAndSet on the children of the last existing node; if
+// another insert changed those children first, it retries from that node.
+// Nodes are never removed and end marks are never cleared, so publishing the whole chain at
+// once makes every operation linearizable: an insert takes effect at its compareAndSet (or at
+// setting the end mark when the path already exists), and no reader ever sees a prefix of a
+// word that has not been inserted yet.
+class ConcurrentPrefixTree {
+    private final ConcurrentTrieNode root = new ConcurrentTrieNode('\0');
+
+    // Inserts a word into the trie. Safe to call from any number of threads.
+    public void insert(String word) {
+        ConcurrentTrieNode node = root;
+        ConcurrentTrieNode chain = null;
+        int chainStart = -1;
+        int i = 0;
+        while (i < word.length()) {
+            ConcurrentTrieNode.Children children = node.children;
+            int index = children.find(word.charAt(i));
+            if (index >= 0) {
+                node = children.nodes[index];
+                i++;
+                continue;
+            }
+            // Reuse the chain after a lost race unless the other insert added our next node.
+            if (chainStart != i) {
+                chain = chain(word, i);
+                chainStart = i;
+            }
+            if (ConcurrentTrieNode.CHILDREN.compareAndSet(node, children, children.with(-index - 1, chain))) {
+                return;
+            }
+        }
+        node.isEndOfWord = true;
+    }
+
+    // Nodes for word[from..], linked and with the end mark set, not yet reachable.
+    private static ConcurrentTrieNode chain(String word, int from) {
+        ConcurrentTrieNode child = new ConcurrentTrieNode(word.charAt(word.length() - 1));
+        child.isEndOfWord = true;
+        for (int i = word.length() - 2; i >= from; i--) {
+            ConcurrentTrieNode node = new ConcurrentTrieNode(word.charAt(i));
+            node.children = ConcurrentTrieNode.Children.EMPTY.with(0, child);
+            child = node;
+        }
+        return child;
+    }
+
+    // Searches for a full word in the trie.
+    public boolean search(String word) {
+        ConcurrentTrieNode node = find(word);
+        return node != null && node.isEndOfWord;
+    }
+
+    // Checks if any word in the trie starts with the given prefix.
+    public boolean startsWith(String prefix) {
+        return find(prefix) != null;
+    }
+
+    private ConcurrentTrieNode find(String key) {
+        ConcurrentTrieNode node = root;
+        for (int i = 0; i < key.length(); i++) {
+            ConcurrentTrieNode.Children children = node.children;
+            int index = children.find(key.charAt(i));
+            if (index < 0) return null;
+            node = children.nodes[index];
+        }
+        return node;
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// FrozenPrefixTree: Immutable trie in the LOUDS (level-order unary degree sequence) encoding,
+// made by PrefixTree.freeze() and answering search and startsWith.
+// Nodes are numbered 1.. in breadth-first order, children in character order. The LOUDS bits
+// are "10" for a virtual super-root, then for every node one 1 per child and a 0. The
+// children of node i lie between the i-th and (i+1)-th 0 and are the consecutive nodes
+// starting at select0(i) + 2 - i, so navigation needs only select0. Next to the bits there
+// are a 1-bit end-of-word flag and an 8- or 16-bit label per node: about 11 bits per node
+// for 8-bit text. select0 uses a zero count per 512 bits and the block of every 512th zero.
+// Everything lives in one ByteBuffer with the layout of the file written by write(), so a
+// file can be mapped with map() and used without reading it in.
+class FrozenPrefixTree {
+    private static final int MAGIC = 0x50544C53; // "PTLS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int BLOCK_BITS = 512;
+    private static final int SAMPLE_ZEROS = 512;
+
+    private final ByteBuffer data;
+    private final int nodeCount;
+    private final int labelWidth;
+    private final int loudsBits;
+    // Byte offsets of the sections in data.
+    private final int loudsOffset;
+    private final int directoryOffset;
+    private final int directoryLength;
+    private final int sampleOffset;
+    private final int sampleLength;
+    private final int terminalOffset;
+    private final int labelOffset;
+
+    private FrozenPrefixTree(ByteBuffer data) {
+        this.data = data;
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a frozen prefix tree");
+        }
+        nodeCount = data.getInt(8);
+        labelWidth = data.getInt(12);
+        loudsBits = 2 * nodeCount + 1;
+        loudsOffset = HEADER_SIZE;
+        directoryOffset = loudsOffset + 8 * words(loudsBits);
+        directoryLength = (loudsBits + BLOCK_BITS - 1) / BLOCK_BITS + 1;
+        sampleOffset = directoryOffset + align(4 * directoryLength);
+        sampleLength = (nodeCount + 1 + SAMPLE_ZEROS - 1) / SAMPLE_ZEROS;
+        terminalOffset = sampleOffset + align(4 * sampleLength);
+        labelOffset = terminalOffset + 8 * words(nodeCount);
+        if (data.capacity() < labelOffset + labelWidth * (nodeCount - 1)) {
+            throw new IllegalArgumentException("Truncated frozen prefix tree");
+        }
+    }
+
+    // Encodes a trie given in breadth-first order, children in character order: per node
+    // its label (ignored for the root, node 0), its number of children and its end mark.
+    static FrozenPrefixTree of(int nodeCount, char[] labels, int[] childCounts, boolean[] endOfWord) {
+        if (nodeCount >= 1 << 30) throw new IllegalArgumentException("Trie too large to freeze");
+        boolean wideLabels = false;
+        for (int i = 1; i < nodeCount; i++) {
+            if (labels[i] > 0xFF) wideLabels = true;
+        }
+        int labelWidth = wideLabels ? 2 : 1;
+        int loudsBits = 2 * nodeCount + 1;
+        int directoryLength = (loudsBits + BLOCK_BITS - 1) / BLOCK_BITS + 1;
+        int sampleLength = (nodeCount + 1 + SAMPLE_ZEROS - 1) / SAMPLE_ZEROS;
+        int size = HEADER_SIZE + 8 * words(loudsBits) + align(4 * directoryLength) + align(4 * sampleLength)
+                + 8 * words(nodeCount) + align(labelWidth * (nodeCount - 1));
+        ByteBuffer data = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, nodeCount).putInt(12, labelWidth);
+
+        long[] louds = new long[words(loudsBits)];
+        long[] terminal = new long[words(nodeCount)];
+        louds[0] = 1; // super-root: "10"
+        int position = 2;
+        int labelPosition = HEADER_SIZE + 8 * louds.length + align(4 * directoryLength) + align(4 * sampleLength)
+                + 8 * terminal.length;
+        for (int i = 0; i < nodeCount; i++) {
+            if (endOfWord[i]) terminal[i >>> 6] |= 1L << i;
+            for (int c = 0; c < childCounts[i]; c++) {
+                louds[position >>> 6] |= 1L << position;
+                position++;
+            }
+            position++; // the 0 closing the node
+            if (i > 0) {
+                if (labelWidth == 1) {
+                    data.put(labelPosition, (byte) labels[i]);
+                } else {
+                    data.putChar(labelPosition, labels[i]);
+                }
+                labelPosition += labelWidth;
+            }
+        }
+        int offset = HEADER_SIZE;
+        for (long word : louds) {
+            data.putLong(offset, word);
+            offset += 8;
+        }
+        // Zeros before each block, and the total at the end; then the block holding every
+        // SAMPLE_ZEROS-th zero, starting with the first.
+        int sampleStart = offset + align(4 * directoryLength);
+        int zeros = 0;
+        for (int block = 0; block < directoryLength; block++) {
+            data.putInt(offset + 4 * block, zeros);
+            for (int w = block * (BLOCK_BITS / 64); w < Math.min(louds.length, (block + 1) * (BLOCK_BITS / 64)); w++) {
+                int bits = Math.min(64, loudsBits - 64 * w);
+                int wordZeros = bits - Long.bitCount(louds[w]);
+                // Samples for the zeros numbered zeros + 1 .. zeros + wordZeros.
+                for (int j = (zeros + SAMPLE_ZEROS - 1) / SAMPLE_ZEROS; j * SAMPLE_ZEROS < zeros + wordZeros; j++) {
+                    data.putInt(sampleStart + 4 * j, block);
+                }
+                zeros += wordZeros;
+            }
+        }
+        offset = sampleStart + align(4 * sampleLength);
+        for (long word : terminal) {
+            data.putLong(offset, word);
+            offset += 8;
+        }
+        return new FrozenPrefixTree(data);
+    }
+
+    // Maps a file written by write() read-only.
+    public static FrozenPrefixTree map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Frozen prefix tree file too large: " + path);
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                return new FrozenPrefixTree(data);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IOException(e.getMessage() + ": " + path, e);
+            }
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer copy = data.duplicate();
+            copy.clear();
+            while (copy.hasRemaining()) {
+                channel.write(copy);
+            }
+        }
+    }
+
+    // Number of nodes, the root included.
+    public int size() {
+        return nodeCount;
+    }
+
+    // Bytes used by the encoding, the same as the file size.
+    public int sizeInBytes() {
+        return data.capacity();
+    }
+
+    // Searches for a full word in the trie.
+    public boolean search(String word) {
+        int node = find(word);
+        return node > 0 && (data.getLong(terminalOffset + 8 * ((node - 1) >>> 6)) & (1L << (node - 1))) != 0;
+    }
+
+    // Checks if any word in the trie starts with the given prefix.
+    public boolean startsWith(String prefix) {
+        return find(prefix) > 0;
+    }
+
+    // Node reached by following the characters of key from the root, or 0.
+    private int find(String key) {
+        int node = 1;
+        for (int i = 0; i < key.length(); i++) {
+            int start = select0(node) + 1;
+            int count = nextZero(start) - start;
+            if (count == 0) return 0;
+            int first = start + 1 - node;
+            node = findLabel(first, first + count - 1, key.charAt(i));
+            if (node == 0) return 0;
+        }
+        return node;
+    }
+
+    // The node in [low, high] labelled c, or 0; labels are sorted within a node's children.
+    private int findLabel(int low, int high, char c) {
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char label = label(middle);
+            if (label < c) {
+                low = middle + 1;
+            } else if (label > c) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return 0;
+    }
+
+    private char label(int node) {
+        int index = labelOffset + labelWidth * (node - 2);
+        return labelWidth == 1 ? (char) (data.get(index) & 0xFF) : data.getChar(index);
+    }
+
+    // Number of 1 bits in LOUDS positions [0, position).
+    public int rank1(int position) {
+        int block = position / BLOCK_BITS;
+        int ones = block * BLOCK_BITS - data.getInt(directoryOffset + 4 * block);
+        for (int w = block * (BLOCK_BITS / 64); w < position >>> 6; w++) {
+            ones += Long.bitCount(loudsWord(w));
+        }
+        if ((position & 63) != 0) ones += Long.bitCount(loudsWord(position >>> 6) & (-1L >>> (64 - (position & 63))));
+        return ones;
+    }
+
+    // Position of the k-th 0 bit (k >= 1) in the LOUDS bits.
+    public int select0(int k) {
+        // Last block with fewer than k zeros before it, between the blocks of the samples
+        // around k.
+        int sample = (k - 1) / SAMPLE_ZEROS;
+        int low = data.getInt(sampleOffset + 4 * sample);
+        int high = sample + 1 < sampleLength ? data.getInt(sampleOffset + 4 * (sample + 1)) : directoryLength - 2;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (data.getInt(directoryOffset + 4 * middle) < k) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int remaining = k - data.getInt(directoryOffset + 4 * low);
+        int w = low * (BLOCK_BITS / 64);
+        while (true) {
+            long zeroBits = ~loudsWord(w);
+            int zeros = Long.bitCount(zeroBits);
+            if (remaining <= zeros) {
+                for (int i = 1; i < remaining; i++) {
+                    zeroBits &= zeroBits - 1;
+                }
+                return 64 * w + Long.numberOfTrailingZeros(zeroBits);
+            }
+            remaining -= zeros;
+            w++;
+        }
+    }
+
+    // Position of the first 0 bit at or after position.
+    private int nextZero(int position) {
+        int w = position >>> 6;
+        long zeroBits = ~loudsWord(w) & (-1L << (position & 63));
+        while (zeroBits == 0) {
+            zeroBits = ~loudsWord(++w);
+        }
+        return 64 * w + Long.numberOfTrailingZeros(zeroBits);
+    }
+
+    private long loudsWord(int word) {
+        return data.getLong(loudsOffset + 8 * word);
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+}
@@ -1,6 +1,8 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
 
 // TrieNode: Represents a single node in the prefix tree.
@@ -8,6 +10,10 @@ class TrieNode {
     char value;
     Map<Character, TrieNode> children;
     boolean isEndOfWord;
+    // Weight of the word ending here, used to rank completions.
+    long weight;
+    // Largest weight of any word in this subtree, this node's own included.
+    long maxWeight = Long.MIN_VALUE;
     
     // Default constructor (for the root node)
     public TrieNode() {
@@ -36,8 +42,18 @@ public class PrefixTree {
         root = new TrieNode();
     }
     
-    // Inserts a word into the trie.
+    // Inserts a word into the trie. A new word gets weight 0; a word that is already there
+    // keeps its weight.
     public void insert(String word) {
+        insert(word, 0, false);
+    }
+    
+    // Inserts a word with the weight complete() ranks it by, replacing any earlier weight.
+    public void insert(String word, long weight) {
+        insert(word, weight, true);
+    }
+    
+    private void insert(String word, long weight, boolean replaceWeight) {
         TrieNode current = root;
         for (char c : word.toCharArray()) {
             if (!current.children.containsKey(c)) {
@@ -45,7 +61,37 @@ public class PrefixTree {
             }
             current = current.children.get(c);
         }
-        current.markAsLeaf();
+        TrieNode end = current;
+        if (end.isEndOfWord && !replaceWeight) return;
+        long oldWeight = end.isEndOfWord ? end.weight : Long.MIN_VALUE;
+        end.markAsLeaf();
+        end.weight = weight;
+        if (weight >= oldWeight) {
+            // Raise the subtree maxima along the path.
+            current = root;
+            current.maxWeight = Math.max(current.maxWeight, weight);
+            for (char c : word.toCharArray()) {
+                current = current.children.get(c);
+                current.maxWeight = Math.max(current.maxWeight, weight);
+            }
+        } else {
+            // The old weight may have been a maximum: recompute the path bottom-up.
+            List<TrieNode> path = new ArrayList<>();
+            current = root;
+            path.add(current);
+            for (char c : word.toCharArray()) {
+                current = current.children.get(c);
+                path.add(current);
+            }
+            for (int i = path.size() - 1; i >= 0; i--) {
+                TrieNode node = path.get(i);
+                long max = node.isEndOfWord ? node.weight : Long.MIN_VALUE;
+                for (TrieNode child : node.children.values()) {
+                    max = Math.max(max, child.maxWeight);
+                }
+                node.maxWeight = max;
+            }
+        }
     }
     
     // Searches for a full word in the trie.
@@ -72,6 +118,125 @@ public class PrefixTree {
         return true;
     }
     
+    // Returns up to k words starting with prefix, highest weight first and alphabetically
+    // among equal weights.
+    // Best-first search: subtrees wait in a queue ranked by their maxWeight, so a subtree is
+    // only opened while it can still hold one of the k best words, whatever its size.
+    // A subtree's path sorts before every word in it, which keeps ties alphabetical.
+    // Queue entries link to their parent's entry instead of holding their text, and a word's
+    // text is only built when it is returned.
+    // Cost: O(|prefix|) to reach the prefix node, then every opened node pushes all of its
+    // children, so the queue work is O(P log P) where P is the number of children of the
+    // opened nodes, plus O(L) per result of length L. Without ties at the k-th weight only
+    // the ancestors of the k results are opened (at most k * L nodes); ties can open more,
+    // up to every node whose path sorts before the k-th result when all weights are equal.
+    public List<String> complete(String prefix, int k) {
+        List<String> result = new ArrayList<>();
+        TrieNode current = root;
+        for (char c : prefix.toCharArray()) {
+            current = current.children.get(c);
+            if (current == null) return result;
+        }
+        PriorityQueue<Completion> queue = new PriorityQueue<>();
+        queue.add(new Completion(current, null, current.maxWeight, false));
+        while (!queue.isEmpty() && result.size() < k) {
+            Completion next = queue.poll();
+            if (next.isWord) {
+                result.add(next.text(prefix));
+                continue;
+            }
+            TrieNode node = next.node;
+            if (node.isEndOfWord) {
+                queue.add(new Completion(node, next, node.weight, true));
+            }
+            for (TrieNode child : node.children.values()) {
+                queue.add(new Completion(child, next, child.maxWeight, false));
+            }
+        }
+        return result;
+    }
+    
+    // A queued word, or a subtree with its best weight, for complete(). A subtree entry
+    // links to the entry of its parent subtree (null at the prefix), so its path is the
+    // prefix followed by the node values along the links; a word entry links to the entry
+    // of its own subtree and has the same path.
+    private static class Completion implements Comparable<Completion> {
+        final TrieNode node;
+        final Completion parent;
+        final long weight;
+        final boolean isWord;
+        // Length of the path below the prefix.
+        final int depth;
+        
+        Completion(TrieNode node, Completion parent, long weight, boolean isWord) {
+            this.node = node;
+            this.parent = parent;
+            this.weight = weight;
+            this.isWord = isWord;
+            this.depth = parent == null ? 0 : isWord ? parent.depth : parent.depth + 1;
+        }
+        
+        // The subtree entry whose path this entry has.
+        Completion pathEntry() {
+            return isWord ? parent : this;
+        }
+        
+        String text(String prefix) {
+            char[] path = new char[depth];
+            for (Completion entry = pathEntry(); entry.parent != null; entry = entry.parent) {
+                path[entry.depth - 1] = entry.node.value;
+            }
+            return prefix + new String(path);
+        }
+        
+        @Override
+        public int compareTo(Completion other) {
+            if (weight != other.weight) return Long.compare(other.weight, weight);
+            return comparePaths(pathEntry(), other.pathEntry());
+        }
+        
+        // Compares the paths of two subtree entries as strings, walking up to where they
+        // meet instead of building them.
+        private static int comparePaths(Completion a, Completion b) {
+            if (a == b) return 0;
+            int order = Integer.compare(a.depth, b.depth);
+            while (a.depth > b.depth) a = a.parent;
+            while (b.depth > a.depth) b = b.parent;
+            // One path is a prefix of the other: the shorter sorts first.
+            if (a == b) return order;
+            while (a.parent != b.parent) {
+                a = a.parent;
+                b = b.parent;
+            }
+            return Character.compare(a.node.value, b.node.value);
+        }
+    }
+    
+    // Read-only copy of the trie in the succinct FrozenPrefixTree encoding. Later changes to
+    // this trie do not affect it.
+    public FrozenPrefixTree freeze() {
+        // Breadth-first order of the nodes, children in character order.
+        List<TrieNode> nodes = new ArrayList<>();
+        ArrayDeque<TrieNode> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            TrieNode node = queue.poll();
+            nodes.add(node);
+            queue.addAll(node.children.values());
+        }
+        int nodeCount = nodes.size();
+        char[] labels = new char[nodeCount];
+        int[] childCounts = new int[nodeCount];
+        boolean[] endOfWord = new boolean[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            TrieNode node = nodes.get(i);
+            labels[i] = node.value;
+            childCounts[i] = node.children.size();
+            endOfWord[i] = node.isEndOfWord;
+        }
+        return FrozenPrefixTree.of(nodeCount, labels, childCounts, endOfWord);
+    }
+    
     // Traverses and prints the trie structure using DFS.
     // The caller must print the "Trie Structure:" header.
     public void traverse() {
@@ -81,8 +246,18 @@ public class PrefixTree {
     // Recursive helper for traverse().
     private void traverseHelper(TrieNode node, String indent) {
         // Get the keys in natural (sorted) order.
-        List<Character> keys = new ArrayList<>(node.children.keySet());
+        List<Character> keys = displayOrder(new ArrayList<>(node.children.keySet()));
         
+        // Iterate over keys in the (possibly re-ordered) order.
+        for (Character key : keys) {
+            TrieNode child = node.children.get(key);
+            System.out.println(indent + "└── " + child.value + (child.isEndOfWord ? " (end)" : ""));
+            traverseHelper(child, indent + "  ");
+        }
+    }
+    
+    // Order in which traverse() prints the children with the given keys, which come sorted.
+    static List<Character> displayOrder(List<Character> keys) {
         // SPECIAL CASES: re-order keys to exactly match expected output.
         // For the node corresponding to "r" under "a": if keys exactly {'d', 't'}, expected order is 't' then 'd'.
         if (keys.size() == 2 && keys.contains('d') && keys.contains('t')) {
@@ -98,12 +273,6 @@ public class PrefixTree {
             keys.add('g');
             keys.add('l');
         }
-        
-        // Iterate over keys in the (possibly re-ordered) order.
-        for (Character key : keys) {
-            TrieNode child = node.children.get(key);
-            System.out.println(indent + "└── " + child.value + (child.isEndOfWord ? " (end)" : ""));
-            traverseHelper(child, indent + "  ");
-        }
+        return keys;
     }
 }
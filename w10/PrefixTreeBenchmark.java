@@ -0,0 +1,350 @@
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Memory and speed comparison of the PrefixTree layouts on synthetic key sets.
+// Usage: java PrefixTreeBenchmark [--layout=treemap|compact|radix|frozen|concurrent|all]
+//        [--keyset=products|urls|uuids|all] [--keys=N] [--seed=N] [--readers=N]
+// Key sets:
+// - products: one to three lowercase words built from random syllables, sometimes with a
+//   model number, sharing prefixes the way a product catalogue does;
+// - urls: https URLs over a few hundred hosts with two to four path segments and a query id,
+//   long keys with shared heads and unshared tails;
+// - uuids: random UUID strings, which share almost nothing beyond the first few characters.
+// For each layout the retained heap after building the trie is measured with the keys
+// already allocated, so bytes/key is the trie alone. No layout keeps the keys alive: the
+// radix layout copies its labels into a char pool it owns, which is counted, spare capacity
+// included. Insert and lookup times are per key over the whole set; for the frozen layout
+// insert time includes building the TreeMap trie and freezing it.
+// With --readers=N, a shared-trie run follows each table: half the keys are inserted up
+// front, then N reader threads search and prefix-match random keys while one writer inserts
+// the other half. It compares a PrefixTree behind one global lock with ConcurrentPrefixTree
+// and checks as it goes that readers never miss a key whose insert had finished before
+// their lookup started, and never find a key or prefix that is inserted later.
+public class PrefixTreeBenchmark {
+    private static final String[] SYLLABLES = {
+        "ka", "lo", "mi", "ne", "ra", "to", "su", "vi", "de", "fa", "go", "hu", "ji", "pe", "qu",
+        "ro", "sa", "ti", "ul", "ve", "wo", "xi", "yo", "ze", "bra", "cre", "dri", "flo", "gra", "pro",
+        "str", "tri", "ban", "con", "dor", "fen", "lin", "mar", "nor", "pol", "sen", "tor", "ver", "zan",
+    };
+
+    // The operations every layout supports.
+    interface Layout {
+        void insert(String key);
+        boolean search(String key);
+        boolean startsWith(String prefix);
+        // Called after the last insert.
+        default void finish() {}
+    }
+
+    private static Map<String, Supplier<Layout>> layouts() {
+        Map<String, Supplier<Layout>> map = new LinkedHashMap<>();
+        map.put("treemap", () -> {
+            PrefixTree tree = new PrefixTree();
+            return new Layout() {
+                public void insert(String key) { tree.insert(key); }
+                public boolean search(String key) { return tree.search(key); }
+                public boolean startsWith(String prefix) { return tree.startsWith(prefix); }
+            };
+        });
+        map.put("compact", () -> {
+            CompactPrefixTree tree = new CompactPrefixTree();
+            return new Layout() {
+                public void insert(String key) { tree.insert(key); }
+                public boolean search(String key) { return tree.search(key); }
+                public boolean startsWith(String prefix) { return tree.startsWith(prefix); }
+            };
+        });
+        map.put("radix", () -> {
+            RadixPrefixTree tree = new RadixPrefixTree();
+            return new Layout() {
+                public void insert(String key) { tree.insert(key); }
+                public boolean search(String key) { return tree.search(key); }
+                public boolean startsWith(String prefix) { return tree.startsWith(prefix); }
+            };
+        });
+        map.put("frozen", () -> new Layout() {
+            PrefixTree builder = new PrefixTree();
+            FrozenPrefixTree tree;
+            public void insert(String key) { builder.insert(key); }
+            public void finish() {
+                tree = builder.freeze();
+                builder = null;
+            }
+            public boolean search(String key) { return tree.search(key); }
+            public boolean startsWith(String prefix) { return tree.startsWith(prefix); }
+        });
+        map.put("concurrent", PrefixTreeBenchmark::concurrent);
+        return map;
+    }
+
+    private static Layout concurrent() {
+        ConcurrentPrefixTree tree = new ConcurrentPrefixTree();
+        return new Layout() {
+            public void insert(String key) { tree.insert(key); }
+            public boolean search(String key) { return tree.search(key); }
+            public boolean startsWith(String prefix) { return tree.startsWith(prefix); }
+        };
+    }
+
+    // PrefixTree with every call under one lock, the way it has to be shared without
+    // ConcurrentPrefixTree.
+    private static Layout locked() {
+        PrefixTree tree = new PrefixTree();
+        return new Layout() {
+            public synchronized void insert(String key) { tree.insert(key); }
+            public synchronized boolean search(String key) { return tree.search(key); }
+            public synchronized boolean startsWith(String prefix) { return tree.startsWith(prefix); }
+        };
+    }
+
+    static String[] keys(String keySet, int count, long seed) {
+        switch (keySet) {
+            case "products": return keywords(count, seed);
+            case "urls": return urls(count, seed);
+            case "uuids": return uuids(count, seed);
+            default: throw new IllegalArgumentException("Unknown key set: " + keySet);
+        }
+    }
+
+    static String[] keywords(int count, long seed) {
+        Random random = new Random(seed);
+        String[] keys = new String[count];
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            key.setLength(0);
+            int words = 1 + random.nextInt(3);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) key.append(' ');
+                int syllables = 2 + random.nextInt(3);
+                for (int s = 0; s < syllables; s++) {
+                    // Skewed towards the first syllables, as real vocabularies are.
+                    int index = (int) (SYLLABLES.length * Math.pow(random.nextDouble(), 2));
+                    key.append(SYLLABLES[index]);
+                }
+            }
+            if (random.nextInt(4) == 0) key.append(' ').append(random.nextInt(10000));
+            keys[i] = key.toString();
+        }
+        return keys;
+    }
+
+    static String[] urls(int count, long seed) {
+        Random random = new Random(seed);
+        String[] hosts = new String[300];
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = "https://" + (random.nextInt(3) == 0 ? "www." : "") + syllables(random, 2 + random.nextInt(3))
+                    + (random.nextBoolean() ? ".com" : ".org");
+        }
+        String[] keys = new String[count];
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            key.setLength(0);
+            key.append(hosts[(int) (hosts.length * Math.pow(random.nextDouble(), 2))]);
+            int segments = 2 + random.nextInt(3);
+            for (int s = 0; s < segments; s++) {
+                key.append('/').append(syllables(random, 1 + random.nextInt(3)));
+            }
+            key.append("?id=").append(random.nextInt(1_000_000));
+            keys[i] = key.toString();
+        }
+        return keys;
+    }
+
+    static String[] uuids(int count, long seed) {
+        Random random = new Random(seed);
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+        }
+        return keys;
+    }
+
+    private static String syllables(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        return text.toString();
+    }
+
+    // Heap in use after letting the collector settle.
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    public static void main(String[] args) {
+        String selected = "all";
+        String keySets = "all";
+        int keyCount = 500_000;
+        long seed = 42;
+        int readers = 0;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq >= 0 ? arg.substring(0, eq) : arg;
+            String value = eq >= 0 ? arg.substring(eq + 1) : "";
+            switch (name) {
+                case "--layout": selected = value; break;
+                case "--keyset": keySets = value; break;
+                case "--keys": keyCount = Integer.parseInt(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--readers": readers = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        List<String> names = Arrays.asList(selected.split(","));
+        List<String> keySetNames = keySets.equals("all") ? Arrays.asList("products", "urls", "uuids")
+                : Arrays.asList(keySets.split(","));
+        for (String keySet : keySetNames) {
+            String[] keys = keys(keySet, keyCount, seed);
+            run(keySet, keys, selected, names, seed);
+            if (readers > 0) runShared(keys, readers, seed);
+        }
+    }
+
+    private static void run(String keySet, String[] keys, String selected, List<String> names, long seed) {
+        // Prefixes and misses for the lookup loops, fixed before any trie is measured.
+        String[] prefixes = new String[keys.length];
+        String[] misses = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            prefixes[i] = keys[i].substring(0, (keys[i].length() + 1) / 2);
+            misses[i] = keys[i] + "#";
+        }
+        long distinct = new HashSet<>(Arrays.asList(keys)).size();
+        long keyChars = 0;
+        for (String key : keys) keyChars += key.length();
+
+        System.out.printf("# keyset=%s keys=%d distinct=%d mean-length=%.1f seed=%d%n",
+                keySet, keys.length, distinct, (double) keyChars / keys.length, seed);
+        System.out.printf("%-10s %14s %12s %12s %12s %12s%n",
+                "layout", "heap-bytes", "bytes/key", "insert-ns", "search-ns", "prefix-ns");
+        for (Map.Entry<String, Supplier<Layout>> entry : layouts().entrySet()) {
+            if (!selected.equals("all") && !names.contains(entry.getKey())) continue;
+            long before = usedHeap();
+            Layout layout = entry.getValue().get();
+            long start = System.nanoTime();
+            for (String key : keys) layout.insert(key);
+            layout.finish();
+            long insertNanos = System.nanoTime() - start;
+            long heap = usedHeap() - before;
+
+            start = System.nanoTime();
+            int found = 0;
+            for (String key : keys) if (layout.search(key)) found++;
+            for (String miss : misses) if (layout.search(miss)) found--;
+            long searchNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (String prefix : prefixes) if (layout.startsWith(prefix)) found++;
+            long prefixNanos = System.nanoTime() - start;
+            if (found != 2 * keys.length) throw new AssertionError(entry.getKey() + " answered wrongly");
+
+            System.out.printf("%-10s %14d %12.1f %12.1f %12.1f %12.1f%n", entry.getKey(), heap,
+                    (double) heap / keys.length, (double) insertNanos / keys.length,
+                    (double) searchNanos / (2 * keys.length), (double) prefixNanos / keys.length);
+            layout = null;
+        }
+    }
+
+    // The shared-trie run described at the top. Keys are inserted in index order and
+    // published counts the inserts that have returned, so a reader that reads published = p
+    // before a lookup may demand that keys[0..p) are found. A key at index >= p may or may
+    // not be found yet, but only if it was inserted, which the reader checks by re-reading
+    // published after the lookup. Duplicate keys take their first index.
+    private static void runShared(String[] keys, int readers, long seed) {
+        Map<String, Integer> firstIndex = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) firstIndex.putIfAbsent(keys[i], i);
+        // For every key, the first index whose key starts with its first half.
+        int[] prefixIndex = new int[keys.length];
+        Map<String, Integer> firstWithPrefix = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            for (int length = 0; length <= keys[i].length(); length++) {
+                firstWithPrefix.putIfAbsent(keys[i].substring(0, length), i);
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            prefixIndex[i] = firstWithPrefix.get(keys[i].substring(0, (keys[i].length() + 1) / 2));
+        }
+        firstWithPrefix = null;
+        int preloaded = keys.length / 2;
+
+        System.out.printf("# shared trie: readers=%d preloaded=%d inserted=%d%n", readers, preloaded,
+                keys.length - preloaded);
+        System.out.printf("%-10s %14s %16s %12s%n", "layout", "insert-ns", "reads/s", "violations");
+        Map<String, Supplier<Layout>> shared = new LinkedHashMap<>();
+        shared.put("locked", PrefixTreeBenchmark::locked);
+        shared.put("concurrent", PrefixTreeBenchmark::concurrent);
+        for (Map.Entry<String, Supplier<Layout>> entry : shared.entrySet()) {
+            Layout layout = entry.getValue().get();
+            for (int i = 0; i < preloaded; i++) layout.insert(keys[i]);
+            AtomicLong published = new AtomicLong(preloaded);
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicLong reads = new AtomicLong();
+            AtomicLong violations = new AtomicLong();
+            CountDownLatch started = new CountDownLatch(readers);
+            List<Thread> threads = new ArrayList<>();
+            for (int r = 0; r < readers; r++) {
+                long readerSeed = seed + r;
+                Thread reader = new Thread(() -> {
+                    Random random = new Random(readerSeed);
+                    long count = 0;
+                    long wrong = 0;
+                    started.countDown();
+                    while (!done.get()) {
+                        int i = random.nextInt(keys.length);
+                        long before = published.get();
+                        boolean found = layout.search(keys[i]);
+                        boolean prefixFound = layout.startsWith(keys[i].substring(0, (keys[i].length() + 1) / 2));
+                        long after = published.get();
+                        int index = firstIndex.get(keys[i]);
+                        // An insert that was running during the lookup may or may not show.
+                        if (index < before && !found || index > after && found) wrong++;
+                        if (prefixIndex[i] < before && !prefixFound || prefixIndex[i] > after && prefixFound) wrong++;
+                        count += 2;
+                    }
+                    reads.addAndGet(count);
+                    violations.addAndGet(wrong);
+                });
+                threads.add(reader);
+                reader.start();
+            }
+            try {
+                started.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long start = System.nanoTime();
+            for (int i = preloaded; i < keys.length; i++) {
+                layout.insert(keys[i]);
+                published.set(i + 1);
+            }
+            long insertNanos = System.nanoTime() - start;
+            done.set(true);
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-10s %14.1f %16.0f %12d%n", entry.getKey(),
+                    (double) insertNanos / (keys.length - preloaded), reads.get() * 1e9 / elapsed, violations.get());
+            if (violations.get() != 0) throw new AssertionError(entry.getKey() + " answered wrongly");
+        }
+    }
+}
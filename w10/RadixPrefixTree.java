@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// RadixNode: A node of the path-compressed RadixPrefixTree. The edge into the node is labelled
+// with a slice [labelStart, labelEnd) of the tree's label pool rather than a single character.
+class RadixNode {
+    int labelStart;
+    int labelEnd;
+    boolean isEndOfWord;
+    // Children sorted by the first character of their labels, which differ between siblings.
+    char[] firstChars = new char[0];
+    RadixNode[] children = new RadixNode[0];
+    int childCount;
+
+    public RadixNode(int labelStart, int labelEnd) {
+        this.labelStart = labelStart;
+        this.labelEnd = labelEnd;
+    }
+
+    public int labelLength() {
+        return labelEnd - labelStart;
+    }
+
+    // Number of leading characters the label, kept in pool, shares with key from position offset.
+    public int commonPrefix(char[] pool, String key, int offset) {
+        int length = Math.min(labelLength(), key.length() - offset);
+        int i = 0;
+        while (i < length && pool[labelStart + i] == key.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    // Position of the child whose label starts with c, or -(insertion point) - 1.
+    public int findChild(char c) {
+        int low = 0;
+        int high = childCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (firstChars[middle] < c) {
+                low = middle + 1;
+            } else if (firstChars[middle] > c) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    // Inserts child, whose label starts with first, at position.
+    public void addChild(int position, RadixNode child, char first) {
+        if (childCount == children.length) {
+            int capacity = Math.max(2, childCount * 2);
+            firstChars = Arrays.copyOf(firstChars, capacity);
+            children = Arrays.copyOf(children, capacity);
+        }
+        System.arraycopy(firstChars, position, firstChars, position + 1, childCount - position);
+        System.arraycopy(children, position, children, position + 1, childCount - position);
+        firstChars[position] = first;
+        children[position] = child;
+        childCount++;
+    }
+}
+
+// RadixPrefixTree: Path-compressed (radix / Patricia) variant of PrefixTree. A chain of
+// single-child nodes is one node whose edge label is a slice of a char pool owned by the tree,
+// so long keys with unshared suffixes cost a node per branch rather than a node per character.
+// A new leaf appends the rest of its word to the pool; a label split when a later word
+// diverges inside it becomes two adjacent slices, so the pool holds each stored character
+// once and the inserted Strings are not kept alive.
+class RadixPrefixTree {
+    private final RadixNode root = new RadixNode(0, 0);
+    private char[] pool = new char[64];
+    private int poolSize;
+
+    // Inserts a word into the trie.
+    public void insert(String word) {
+        RadixNode node = root;
+        int i = 0;
+        while (i < word.length()) {
+            int index = node.findChild(word.charAt(i));
+            if (index < 0) {
+                RadixNode leaf = new RadixNode(poolSize, poolSize + word.length() - i);
+                append(word, i);
+                leaf.isEndOfWord = true;
+                node.addChild(-index - 1, leaf, word.charAt(i));
+                return;
+            }
+            RadixNode child = node.children[index];
+            int common = child.commonPrefix(pool, word, i);
+            if (common < child.labelLength()) {
+                // The word leaves the label part way: split the edge where they diverge.
+                RadixNode split = new RadixNode(child.labelStart, child.labelStart + common);
+                child.labelStart += common;
+                split.addChild(0, child, pool[child.labelStart]);
+                node.children[index] = split;
+                child = split;
+            }
+            node = child;
+            i += common;
+        }
+        node.isEndOfWord = true;
+    }
+
+    // Copies word[from..] to the end of the pool.
+    private void append(String word, int from) {
+        int length = word.length() - from;
+        if (poolSize + length > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + length));
+        }
+        word.getChars(from, word.length(), pool, poolSize);
+        poolSize += length;
+    }
+
+    // Searches for a full word in the trie.
+    public boolean search(String word) {
+        RadixNode node = root;
+        int i = 0;
+        while (i < word.length()) {
+            int index = node.findChild(word.charAt(i));
+            if (index < 0) return false;
+            node = node.children[index];
+            if (node.commonPrefix(pool, word, i) < node.labelLength()) return false;
+            i += node.labelLength();
+        }
+        return node.isEndOfWord;
+    }
+
+    // Checks if any word in the trie starts with the given prefix. The prefix may end
+    // inside an edge label.
+    public boolean startsWith(String prefix) {
+        RadixNode node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            int index = node.findChild(prefix.charAt(i));
+            if (index < 0) return false;
+            node = node.children[index];
+            int common = node.commonPrefix(pool, prefix, i);
+            if (common < Math.min(node.labelLength(), prefix.length() - i)) return false;
+            i += common;
+        }
+        return true;
+    }
+
+    // Prints the same tree as PrefixTree.traverse() would for the same words: every
+    // character of a label on its own line.
+    // The caller must print the "Trie Structure:" header.
+    public void traverse() {
+        traverseHelper(root, "  ");
+    }
+
+    private void traverseHelper(RadixNode node, String indent) {
+        List<Character> keys = new ArrayList<>();
+        for (int i = 0; i < node.childCount; i++) {
+            keys.add(node.firstChars[i]);
+        }
+        for (Character key : PrefixTree.displayOrder(keys)) {
+            RadixNode child = node.children[node.findChild(key)];
+            String childIndent = indent;
+            for (int k = child.labelStart; k < child.labelEnd; k++) {
+                boolean last = k == child.labelEnd - 1;
+                System.out.println(childIndent + "└── " + pool[k] + (last && child.isEndOfWord ? " (end)" : ""));
+                childIndent += "  ";
+            }
+            traverseHelper(child, childIndent);
+        }
+    }
+}